@@ -1,6 +1,7 @@
 package me.kalmemarq;
 
 import me.kalmemarq.block.Blocks;
+import me.kalmemarq.entity.EntityState;
 import me.kalmemarq.entity.PlayerEntity;
 import me.kalmemarq.entity.ZombieEntity;
 import me.kalmemarq.entity.model.ZombieModel;
@@ -8,12 +9,14 @@ import me.kalmemarq.render.*;
 import me.kalmemarq.render.NativeImage.Mirroring;
 import me.kalmemarq.render.NativeImage.PixelFormat;
 import me.kalmemarq.render.vertex.BufferBuilder;
+import me.kalmemarq.render.vertex.QuadIndexBuffer;
 import me.kalmemarq.render.vertex.VertexBuffer;
 import me.kalmemarq.render.vertex.VertexLayout;
 import me.kalmemarq.util.BlockHitResult;
 import me.kalmemarq.util.IOUtils;
 import me.kalmemarq.util.Keybinding;
 import me.kalmemarq.util.TimeUtils;
+import me.kalmemarq.world.PublishedBlockView;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.joml.Matrix4f;
@@ -38,12 +41,19 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 public class Game implements Runnable, Window.EventHandler {
     private static final Logger LOGGER = LogManager.getLogger("Main");
     private static final String VERSION = "rd20090515";
     private static final float MOUSE_SENSITIVITY = 0.08f;
     private static final DateTimeFormatter SCREENSHOT_DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss-SSS");
+    private static final int AUTOSAVE_INTERVAL = 20 * 60;
+    private static final int TICKS_PER_SECOND = 20;
+    private static final long TICK_NANOS = 1_000_000_000L / TICKS_PER_SECOND;
 
     private static int entityRenderCount;
 
@@ -63,6 +73,7 @@ public class Game implements Runnable, Window.EventHandler {
     private final Frustum frustum = new Frustum();
     private PlayerEntity player;
     private BlockHitResult blockHitResult;
+    private volatile RenderState renderState;
     private VertexBuffer blockSelectionVertexBuffer;
     private Framebuffer framebuffer;
     private final List<ZombieEntity> zombies = new ArrayList<>();
@@ -72,6 +83,13 @@ public class Game implements Runnable, Window.EventHandler {
     private boolean rendeInfoOverlay;
     private int fps;
     private int tps;
+    private int ticks;
+    private final AtomicInteger tickCounter = new AtomicInteger();
+    private volatile boolean running;
+    private Thread simulationThread;
+    private final Queue<Runnable> simulationTasks = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> renderThreadTasks = new ConcurrentLinkedQueue<>();
+    private final List<Runnable> pendingRenderTasks = new ArrayList<>();
 
     public Game() {
         instance = this;
@@ -113,16 +131,34 @@ public class Game implements Runnable, Window.EventHandler {
 
         this.blockSelectionVertexBuffer = this.createBlockSelectionVertexBuffer();
 
-        this.world = new World(256, 256, 64);
+        this.world = new World(64, 4);
         this.worldRenderer = new WorldRenderer(this.world);
-        this.world.setStateListener(this.worldRenderer);
+        this.world.setStateListener(new World.WorldStateListener() {
+            @Override
+            public void onChunkModified(int chunkX, int chunkY, int chunkZ) {
+                Game.this.pendingRenderTasks.add(() -> Game.this.worldRenderer.onChunkModified(chunkX, chunkY, chunkZ));
+            }
+
+            @Override
+            public void onColumnLoaded(int chunkX, int chunkZ) {
+                Game.this.pendingRenderTasks.add(() -> Game.this.worldRenderer.onColumnLoaded(chunkX, chunkZ));
+            }
+
+            @Override
+            public void onColumnUnloaded(int chunkX, int chunkZ) {
+                Game.this.pendingRenderTasks.add(() -> Game.this.worldRenderer.onColumnUnloaded(chunkX, chunkZ));
+            }
+        });
 
         this.player = new PlayerEntity(this.world);
+        this.updateLoadedColumns();
         for (int i = 0; i < 10; ++i) {
             ZombieEntity zombie = new ZombieEntity(this.world);
             zombie.setPosition(128f, zombie.position.y, 128f);
             this.zombies.add(zombie);
         }
+        this.publishRenderState();
+        this.flushRenderTasks();
 
         this.window.grabMouse();
 
@@ -132,25 +168,21 @@ public class Game implements Runnable, Window.EventHandler {
         try {
             GL11.glClearColor(0.5f, 0.8f, 1f, 1f);
 
-            int tickCounter = 0;
-            long prevTimeMillis = TimeUtils.getCurrentMillis();
-            int ticksPerSecond = 20;
-            float tickDelta = 0;
+            this.running = true;
+            this.simulationThread = new Thread(this::runSimulation, "Simulation");
+            this.simulationThread.start();
 
             while (!this.window.shouldClose()) {
-                long now = TimeUtils.getCurrentMillis();
-                float lastFrameDuration = (float)(now - prevTimeMillis) / (1000f / ticksPerSecond);
-                prevTimeMillis = now;
-                tickDelta += lastFrameDuration;
-                int i = (int) tickDelta;
-                tickDelta -= (float) i;
-
-                for (; i > 0; --i) {
-                    ++tickCounter;
-                    this.update();
+                Runnable task;
+                while ((task = this.renderThreadTasks.poll()) != null) {
+                    task.run();
                 }
 
-                this.render(tickDelta);
+                this.player.setInput(this.readPlayerInput());
+
+                RenderState state = this.renderState;
+                float tickDelta = Math.min((float) (System.nanoTime() - state.tickTime()) / TICK_NANOS, 1f);
+                this.render(state, tickDelta);
 
                 if (this.rendeInfoOverlay) {
                     ImGuiLayer imGuiLayer = this.window.getImGuiLayer();
@@ -159,7 +191,7 @@ public class Game implements Runnable, Window.EventHandler {
                     ImGui.setNextWindowBgAlpha(0.35f);
                     if (ImGui.begin("Info", ImGuiWindowFlags.NoDecoration | ImGuiWindowFlags.AlwaysAutoResize | ImGuiWindowFlags.NoSavedSettings | ImGuiWindowFlags.NoFocusOnAppearing | ImGuiWindowFlags.NoNav)) {
                         ImGui.text(this.fps + " FPS " + this.tps + " TPS");
-                        ImGui.text("E: " + entityRenderCount + "/" + this.zombies.size() + "C: " + WorldRenderer.chunksRendererPerFrame + "/" + this.worldRenderer.getChunkCount() + " x=" + String.format("%.3f", this.player.position.x) + ",y=" + String.format("%.4f", this.player.position.y) + ",z=" + String.format("%.3f", this.player.position.z));
+                        ImGui.text("E: " + entityRenderCount + "/" + state.zombies().size() + "C: " + WorldRenderer.chunksRendererPerFrame + "/" + this.worldRenderer.getChunkCount() + " x=" + String.format("%.3f", state.player().position().x) + ",y=" + String.format("%.4f", state.player().position().y) + ",z=" + String.format("%.3f", state.player().position().z));
                     }
                     ImGui.end();
                     imGuiLayer.endFrame();
@@ -171,9 +203,8 @@ public class Game implements Runnable, Window.EventHandler {
                 while (TimeUtils.getCurrentMillis() - lastTime > 1000L) {
                     lastTime += 1000L;
                     this.fps = frameCounter;
-                    this.tps = tickCounter;
+                    this.tps = this.tickCounter.getAndSet(0);
                     frameCounter = 0;
-                    tickCounter = 0;
                 }
 
                 entityRenderCount = 0;
@@ -182,7 +213,16 @@ public class Game implements Runnable, Window.EventHandler {
         } catch (Exception e) {
             LOGGER.throwing(e);
         } finally {
+            this.running = false;
+            if (this.simulationThread != null) {
+                try {
+                    this.simulationThread.join();
+                } catch (InterruptedException ignored) {
+                }
+            }
+
             this.world.save();
+            this.world.close();
 
             LOGGER.info("Closing");
             this.selectionShader.close();
@@ -196,6 +236,7 @@ public class Game implements Runnable, Window.EventHandler {
             this.framebuffer.close();
             this.window.getImGuiLayer().close();
             Tessellator.cleanup();
+            QuadIndexBuffer.cleanup();
 
             GL30.glBindVertexArray(0);
             GL30.glBindBuffer(GL20.GL_ARRAY_BUFFER, 0);
@@ -205,7 +246,87 @@ public class Game implements Runnable, Window.EventHandler {
         }
     }
 
+    private void updateLoadedColumns() {
+        this.world.updateLoadedColumns((int) Math.floor(this.player.position.x), (int) Math.floor(this.player.position.z));
+    }
+
+    private void saveWorld() {
+        long start = TimeUtils.getCurrentMillis();
+        this.world.saveAsync().whenComplete((columns, throwable) -> this.simulationTasks.add(() -> {
+            if (throwable != null) {
+                LOGGER.error("Failed to save world", throwable);
+            } else {
+                LOGGER.info("Saved {} columns in {} ms", columns, TimeUtils.getCurrentMillis() - start);
+            }
+        }));
+    }
+
+    // Ticks at a fixed rate on its own thread, the render loop only sees the state published after each tick.
+    private void runSimulation() {
+        long nextTick = System.nanoTime();
+        try {
+            while (this.running) {
+                this.update();
+                this.publishRenderState();
+                this.flushRenderTasks();
+                this.tickCounter.incrementAndGet();
+
+                nextTick += TICK_NANOS;
+                long remaining;
+                while ((remaining = nextTick - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(remaining);
+                }
+                if (remaining < -TICK_NANOS * TICKS_PER_SECOND) {
+                    nextTick = System.nanoTime();
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error("Simulation thread stopped", e);
+            GLFW.glfwSetWindowShouldClose(this.window.getHandle(), true);
+        }
+    }
+
+    private void publishRenderState() {
+        List<EntityState> zombies = new ArrayList<>(this.zombies.size());
+        for (ZombieEntity zombie : this.zombies) {
+            zombies.add(zombie.createState());
+        }
+        this.renderState = new RenderState(this.player.createState(), this.blockHitResult, zombies, System.nanoTime());
+    }
+
+    // World events are only handed to the renderer once the tick that caused them has published its sections.
+    private void flushRenderTasks() {
+        this.renderThreadTasks.addAll(this.pendingRenderTasks);
+        this.pendingRenderTasks.clear();
+    }
+
+    // Runs after the edit so the renderer already has the chunks it dirtied when this task reaches it.
+    private void prioritizeRebuild(int x, int y, int z) {
+        this.pendingRenderTasks.add(() -> this.worldRenderer.prioritize(x, y, z));
+    }
+
+    private int readPlayerInput() {
+        int input = 0;
+        if (Keybinding.FOWARDS.isPressed(this.window)) input |= PlayerEntity.INPUT_FORWARDS;
+        if (Keybinding.BACKWARD.isPressed(this.window)) input |= PlayerEntity.INPUT_BACKWARD;
+        if (Keybinding.STRAFE_LEFT.isPressed(this.window)) input |= PlayerEntity.INPUT_STRAFE_LEFT;
+        if (Keybinding.STRAFE_RIGHT.isPressed(this.window)) input |= PlayerEntity.INPUT_STRAFE_RIGHT;
+        if (Keybinding.JUMP.isPressed(this.window)) input |= PlayerEntity.INPUT_JUMP;
+        if (Keybinding.DESCEND.isPressed(this.window)) input |= PlayerEntity.INPUT_DESCEND;
+        return input;
+    }
+
     private void update() {
+        Runnable task;
+        while ((task = this.simulationTasks.poll()) != null) {
+            task.run();
+        }
+
+        if (++this.ticks % AUTOSAVE_INTERVAL == 0) {
+            this.saveWorld();
+        }
+
+        this.updateLoadedColumns();
         this.blockHitResult = this.player.raytrace(8);
 
         this.world.tick();
@@ -221,7 +342,9 @@ public class Game implements Runnable, Window.EventHandler {
         }
     }
 
-    private void render(float tickDelta) {
+    private void render(RenderState state, float tickDelta) {
+        EntityState player = state.player();
+        BlockHitResult blockHitResult = state.blockHitResult();
         this.framebuffer.resize(this.window.getWidth(), this.window.getHeight());
 
         this.framebuffer.bind();
@@ -235,16 +358,17 @@ public class Game implements Runnable, Window.EventHandler {
         GL11.glViewport(0, 0, this.window.getWidth(), this.window.getHeight());
         this.projection.setPerspective((float) Math.toRadians(70.0f), this.window.getWidth() / (float) this.window.getHeight(), 0.01f, 1000.0f);
 
-        float cameraPosX = org.joml.Math.lerp(this.player.prevPosition.x, this.player.position.x, tickDelta);
-        float cameraPosY = org.joml.Math.lerp(this.player.prevPosition.y, this.player.position.y, tickDelta);
-        float cameraPosZ = org.joml.Math.lerp(this.player.prevPosition.z, this.player.position.z, tickDelta);
+        float cameraPosX = org.joml.Math.lerp(player.prevPosition().x, player.position().x, tickDelta);
+        float cameraPosY = org.joml.Math.lerp(player.prevPosition().y, player.position().y, tickDelta);
+        float cameraPosZ = org.joml.Math.lerp(player.prevPosition().z, player.position().z, tickDelta);
 
         this.modelView.identity();
         this.modelView.rotate((float) Math.toRadians(this.player.pitch), 1, 0, 0);
         this.modelView.rotate((float) Math.toRadians(this.player.yaw), 0, 1, 0);
-        this.modelView.translate(-cameraPosX, -(cameraPosY + this.player.eyeHeight), -cameraPosZ);
+        this.modelView.translate(-cameraPosX, -(cameraPosY + player.eyeHeight()), -cameraPosZ);
 
         this.frustum.set(this.projection, this.modelView);
+        this.worldRenderer.update(this.frustum, cameraPosX, cameraPosY + player.eyeHeight(), cameraPosZ);
 
         GL11.glEnable(GL11.GL_DEPTH_TEST);
         GL11.glEnable(GL11.GL_CULL_FACE);
@@ -269,29 +393,29 @@ public class Game implements Runnable, Window.EventHandler {
 
         this.worldRenderer.render(this.terrainShadowShader, this.frustum,  1);
 
-        if (this.blockHitResult != null) {
+        if (blockHitResult != null) {
             this.modelView.identity();
             this.modelView.rotate((float) Math.toRadians(this.player.pitch), 1, 0, 0);
             this.modelView.rotate((float) Math.toRadians(this.player.yaw), 0, 1, 0);
-            this.modelView.translate(-cameraPosX, -(cameraPosY + this.player.eyeHeight), -cameraPosZ);
+            this.modelView.translate(-cameraPosX, -(cameraPosY + player.eyeHeight()), -cameraPosZ);
 
             this.selectionShader.bind();
             this.selectionShader.setUniform("uProjection", this.projection);
             this.selectionShader.setUniform("uColor", 1f, 1f, 1f, (float)Math.sin((double)TimeUtils.getCurrentMillis() / 100.0d) * 0.2f + 0.4f);
-            this.modelView.translate(this.blockHitResult.x(), this.blockHitResult.y(), this.blockHitResult.z());
+            this.modelView.translate(blockHitResult.x(), blockHitResult.y(), blockHitResult.z());
             this.selectionShader.setUniform("uModelView", this.modelView);
 
             GL11.glEnable(GL11.GL_BLEND);
             GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE);
             this.blockSelectionVertexBuffer.bind();
-            this.blockSelectionVertexBuffer.draw(6, (6 * this.blockHitResult.face().index) * 4);
+            this.blockSelectionVertexBuffer.draw(6, 6 * blockHitResult.face().index);
             GL11.glDisable(GL11.GL_BLEND);
         }
 
         this.modelView.identity();
         this.modelView.rotate((float) Math.toRadians(this.player.pitch), 1, 0, 0);
         this.modelView.rotate((float) Math.toRadians(this.player.yaw), 0, 1, 0);
-        this.modelView.translate(-cameraPosX, -(cameraPosY + this.player.eyeHeight), -cameraPosZ);
+        this.modelView.translate(-cameraPosX, -(cameraPosY + player.eyeHeight()), -cameraPosZ);
 
         this.entityShader.bind();
         this.entityShader.setUniform("uProjection", this.projection);
@@ -304,9 +428,9 @@ public class Game implements Runnable, Window.EventHandler {
         tessellator.begin(DrawMode.QUADS, VertexLayout.POS_UV_COLOR);
         BufferBuilder builder = tessellator.getBufferBuilder();
 
-        for (ZombieEntity zombie : this.zombies) {
-            if (!this.frustum.isVisible(zombie.box)) continue;
-            this.zombieModel.render(builder, zombie, zombie.isLit() ? 1f : 0.6f, tickDelta);
+        for (EntityState zombie : state.zombies()) {
+            if (!this.frustum.isVisible(zombie.box())) continue;
+            this.zombieModel.render(builder, zombie, zombie.lit() ? 1f : 0.6f, tickDelta);
             entityRenderCount++;
         }
 
@@ -319,12 +443,12 @@ public class Game implements Runnable, Window.EventHandler {
             this.selectionShader.setUniform("uColor", 1f, 1f, 1f, 1f);
 
             tessellator.begin(DrawMode.LINES, VertexLayout.POS);
-            for (ZombieEntity zombie : this.zombies) {
-                if (!this.frustum.isVisible(zombie.box)) continue;
-                float x = org.joml.Math.lerp(zombie.prevPosition.x, zombie.position.x, tickDelta);
-                float y = org.joml.Math.lerp(zombie.prevPosition.y, zombie.position.y, tickDelta);
-                float z = org.joml.Math.lerp(zombie.prevPosition.z, zombie.position.z, tickDelta);
-                this.renderBox(builder, x - zombie.size.x / 2, y, z - zombie.size.x / 2, x + zombie.size.x / 2, y + zombie.eyeHeight, z + zombie.size.x / 2);
+            for (EntityState zombie : state.zombies()) {
+                if (!this.frustum.isVisible(zombie.box())) continue;
+                float x = org.joml.Math.lerp(zombie.prevPosition().x, zombie.position().x, tickDelta);
+                float y = org.joml.Math.lerp(zombie.prevPosition().y, zombie.position().y, tickDelta);
+                float z = org.joml.Math.lerp(zombie.prevPosition().z, zombie.position().z, tickDelta);
+                this.renderBox(builder, x - zombie.width() / 2, y, z - zombie.width() / 2, x + zombie.width() / 2, y + zombie.eyeHeight(), z + zombie.width() / 2);
             }
             tessellator.draw();
         }
@@ -366,7 +490,7 @@ public class Game implements Runnable, Window.EventHandler {
         tessellator.begin(DrawMode.QUADS, VertexLayout.POS_UV_COLOR);
         BufferBuilder builder = tessellator.getBufferBuilder();
 
-        Blocks.blocks[this.selectedBlockId].render(this.world, matrices, builder, 0, -2, 0, 0);
+        Blocks.blocks[this.selectedBlockId].render(new PublishedBlockView(this.world), matrices, builder, 0, -2, 0, 0);
 
         tessellator.draw();
         matrices.pop();
@@ -426,16 +550,24 @@ public class Game implements Runnable, Window.EventHandler {
 
     @Override
     public void onMouseButton(int button, int action) {
-        if (action != GLFW.GLFW_RELEASE && this.blockHitResult != null) {
+        BlockHitResult blockHitResult = this.renderState.blockHitResult();
+        if (action != GLFW.GLFW_RELEASE && blockHitResult != null) {
             if (button == 1) {
-                this.world.setBlockId(this.blockHitResult.x(), this.blockHitResult.y(), this.blockHitResult.z(), 0);
+                this.simulationTasks.add(() -> {
+                    this.world.setBlockId(blockHitResult.x(), blockHitResult.y(), blockHitResult.z(), 0);
+                    this.prioritizeRebuild(blockHitResult.x(), blockHitResult.y(), blockHitResult.z());
+                });
             } else if (button == 0) {
-                int x = this.blockHitResult.x() + this.blockHitResult.face().normalX;
-                int y = this.blockHitResult.y() + this.blockHitResult.face().normalY;
-                int z = this.blockHitResult.z() + this.blockHitResult.face().normalZ;
-                if (!this.player.box.intersects(x, y, z, x + 1, y + 1, z + 1)) {
-                    this.world.setBlockId(x, y, z, this.selectedBlockId);
-                }
+                int x = blockHitResult.x() + blockHitResult.face().normalX;
+                int y = blockHitResult.y() + blockHitResult.face().normalY;
+                int z = blockHitResult.z() + blockHitResult.face().normalZ;
+                int blockId = this.selectedBlockId;
+                this.simulationTasks.add(() -> {
+                    if (!this.player.box.intersects(x, y, z, x + 1, y + 1, z + 1)) {
+                        this.world.setBlockId(x, y, z, blockId);
+                        this.prioritizeRebuild(x, y, z);
+                    }
+                });
             }
         }
     }
@@ -450,13 +582,13 @@ public class Game implements Runnable, Window.EventHandler {
             } else if (Keybinding.TOGGLE_FULLSCREEN.test(key)) {
                 this.window.toggleFullscreen();
             } else if (Keybinding.SAVE_WORLD_TO_DISK.test(key)) {
-                this.world.save();
+                this.simulationTasks.add(this::saveWorld);
             } else if (Keybinding.GO_TO_RANDOM_POS.test(key)) {
-                this.player.goToRandomPosition();
+                this.simulationTasks.add(this.player::goToRandomPosition);
             } else if (Keybinding.FLY.test(key)) {
-                this.player.canFly = !this.player.canFly;
+                this.simulationTasks.add(() -> this.player.canFly = !this.player.canFly);
             } else if (Keybinding.NO_CLIP.test(key)) {
-                this.player.noClip = !this.player.noClip;
+                this.simulationTasks.add(() -> this.player.noClip = !this.player.noClip);
             } else if (key == GLFW.GLFW_KEY_F8) {
                 this.renderEntityHitboxes = !this.renderEntityHitboxes;
             } else if (key == GLFW.GLFW_KEY_1) {
@@ -468,9 +600,11 @@ public class Game implements Runnable, Window.EventHandler {
             } else if (key == GLFW.GLFW_KEY_4) {
                 this.selectedBlockId = 5;
             } else if (key == GLFW.GLFW_KEY_G) {
-                ZombieEntity zombie = new ZombieEntity(this.world);
-                zombie.setPosition(this.player.position.x, this.player.position.y, this.player.position.z);
-                this.zombies.add(zombie);
+                this.simulationTasks.add(() -> {
+                    ZombieEntity zombie = new ZombieEntity(this.world);
+                    zombie.setPosition(this.player.position.x, this.player.position.y, this.player.position.z);
+                    this.zombies.add(zombie);
+                });
             } else if (key == GLFW.GLFW_KEY_F3) {
                 this.rendeInfoOverlay = !this.rendeInfoOverlay;
             } else if (key == GLFW.GLFW_KEY_F2) {
@@ -535,4 +669,7 @@ public class Game implements Runnable, Window.EventHandler {
         }
         return blockSelectionVertexBuffer;
     }
+
+    private record RenderState(EntityState player, BlockHitResult blockHitResult, List<EntityState> zombies, long tickTime) {
+    }
 }
@@ -1,217 +1,761 @@
 package me.kalmemarq;
 
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
 import me.kalmemarq.block.Block;
 import me.kalmemarq.block.Blocks;
 import me.kalmemarq.util.BlockHitResult;
 import me.kalmemarq.util.Box;
-import me.kalmemarq.util.PerlinNoiseFilter;
+import me.kalmemarq.world.BlockChangeLog;
+import me.kalmemarq.world.BlockPos;
+import me.kalmemarq.world.BlockRegion;
+import me.kalmemarq.world.BlockView;
+import me.kalmemarq.world.ChunkColumn;
+import me.kalmemarq.world.ChunkPos;
+import me.kalmemarq.world.ChunkSection;
+import me.kalmemarq.world.ColumnStorage;
+import me.kalmemarq.world.LightEngine;
+import me.kalmemarq.world.ScheduledTicks;
+import me.kalmemarq.world.SectionView;
+import me.kalmemarq.world.WorldGenerator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.joml.Vector3d;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
-public class World {
+public class World implements BlockView {
+    private static final Logger LOGGER = LogManager.getLogger("World");
     public static final int CHUNK_SIZE = 32;
-    public final int width;
-    public final int height;
+    public static final int CHUNK_SHIFT = 5;
+    public static final int SPAWN_SIZE = 256;
+    public static final Path SAVE_DIRECTORY = Path.of("world");
+    private static final Path LEGACY_LEVEL = Path.of("level.dat");
+    private static final int LEGACY_SIZE = 256;
+    private static final int LEGACY_DEPTH = 64;
+    private static final int CHANGE_LOG_FLUSH_INTERVAL = 20;
+    private static final int MAX_SCHEDULED_TICKS = 1000;
+    private static final int UNLOADED_TICK_DELAY = 20;
+
     public final int depth;
-    private final byte[] blocks;
-    private final short[] heightmap;
+    private final int viewDistance;
+    private final Long2ObjectOpenHashMap<ChunkColumn> columns = new Long2ObjectOpenHashMap<>();
+    private final ColumnStorage storage = new ColumnStorage(SAVE_DIRECTORY, System.getProperty("whatDoesMcMean.world.uncompressed") == null);
+    private final Map<Long, ChunkColumn> pendingSaves = new ConcurrentHashMap<>();
+    private final Map<Long, ChunkColumn> failedSaves = new ConcurrentHashMap<>();
+    private final Map<Long, ChunkColumn> publishedColumns = new ConcurrentHashMap<>();
+    private final ExecutorService saveExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "World Saver");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final WorldGenerator generator;
+    private final BlockChangeLog changeLog;
+    private final ScheduledTicks scheduledTicks = new ScheduledTicks();
+    private final LightEngine lightEngine = new LightEngine(this, this::markDirty);
+    private final LongOpenHashSet dirtyChunks = new LongOpenHashSet();
+    private volatile boolean changeLogCompactable = true;
+    private long seed;
+    private int time;
+    private ChunkColumn lastColumn;
     private WorldStateListener stateListener;
 
     private final Random random = new Random();
     private int unprocessed;
 
-    public World(int width, int height, int depth) {
-        this.width = width;
-        this.height = height;
+    public World(int depth, int viewDistance) {
         this.depth = depth;
-        this.blocks = new byte[width * height * depth];
-        this.heightmap = new short[width * height];
+        this.viewDistance = viewDistance;
 
-        if (!this.load()) {
-            this.generate();
+        boolean created = !this.load();
+        if (created) {
+            this.seed = this.random.nextLong();
         }
 
-        this.calculateHeightMap();
+        this.generator = new WorldGenerator(this.seed, depth);
+
+        try {
+            // The seed has to be on disk before any change is logged against the terrain it generates.
+            if (created) {
+                this.importLegacyLevel();
+                this.writeLevelData(this.seed, this.time, this.scheduledTicks);
+            }
+            this.changeLog = new BlockChangeLog(SAVE_DIRECTORY.resolve("changes.log"), this.saveExecutor, () -> this.changeLogCompactable = false);
+            this.replayChangeLog();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
-    private void generate() {
-        PerlinNoiseFilter filter = new PerlinNoiseFilter();
-        int[] heightmap1 = filter.read(this.width, this.height, 0);
-        int[] heightmap2 = filter.read(this.width, this.height, 0);
-        int[] controlFilter = filter.read(this.width, this.height, 1);
-        int[] rockMap = filter.read(this.width, this.height, 1);
+    // A missing level.dat means a new world, an unreadable one must not be replaced by a new seed.
+    public boolean load() {
+        Path path = SAVE_DIRECTORY.resolve("level.dat");
+        if (!Files.exists(path)) return false;
+
+        try (DataInputStream e = new DataInputStream(new GZIPInputStream(Files.newInputStream(path)))) {
+            this.seed = e.readLong();
+            this.time = e.readInt();
+            this.scheduledTicks.read(e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + path, e);
+        }
 
-        for (int y = 0; y < this.depth; ++y) {
-            for (int z = 0; z < this.height; ++z) {
-                for (int x = 0; x < this.width; ++x) {
-                    int dh1 = heightmap1[x + z * this.width];
-                    int dh2 = heightmap2[x + z * this.width];
-                    int cfh = controlFilter[x + z * this.width];
-                    if (cfh < 128) {
-                        dh2 = dh1;
-                    }
+        return true;
+    }
 
-                    int dh = Math.max(dh2, dh1);
+    // Before the world was unbounded it was a single gzipped block array in ./level.dat, indexed
+    // (y * 256 + z) * 256 + x. Its columns are stored once and the old file is renamed so it is not imported again.
+    private void importLegacyLevel() throws IOException {
+        if (!Files.exists(LEGACY_LEVEL)) return;
 
-                    dh = dh / 8 + this.depth / 3;
-                    int rh = rockMap[x + z * this.width] / 8 + this.depth / 3;
-                    if (rh > dh - 2) {
-                        rh = dh - 2;
+        byte[] blocks = new byte[LEGACY_SIZE * LEGACY_SIZE * LEGACY_DEPTH];
+        try (DataInputStream e = new DataInputStream(new GZIPInputStream(Files.newInputStream(LEGACY_LEVEL)))) {
+            e.readFully(blocks);
+        }
+
+        int depth = Math.min(this.depth, LEGACY_DEPTH);
+        for (int chunkZ = 0; chunkZ < LEGACY_SIZE / CHUNK_SIZE; ++chunkZ) {
+            for (int chunkX = 0; chunkX < LEGACY_SIZE / CHUNK_SIZE; ++chunkX) {
+                ChunkColumn column = new ChunkColumn(chunkX, chunkZ, this.depth);
+                for (int y = 0; y < depth; ++y) {
+                    for (int z = 0; z < CHUNK_SIZE; ++z) {
+                        int index = (y * LEGACY_SIZE + chunkZ * CHUNK_SIZE + z) * LEGACY_SIZE + chunkX * CHUNK_SIZE;
+                        for (int x = 0; x < CHUNK_SIZE; ++x) {
+                            column.set(x, y, z, blocks[index + x] & 0xFF);
+                        }
                     }
+                }
+                column.compact();
+                column.calculateDerivedData();
+                this.storage.write(column);
+            }
+        }
+
+        Files.move(LEGACY_LEVEL, LEGACY_LEVEL.resolveSibling("level.dat.imported"), StandardCopyOption.REPLACE_EXISTING);
+        LOGGER.info("Imported {} into {}", LEGACY_LEVEL, SAVE_DIRECTORY);
+    }
+
+    private void replayChangeLog() throws IOException {
+        Long2ObjectOpenHashMap<ChunkColumn> touched = new Long2ObjectOpenHashMap<>();
+        this.changeLog.replay((x, y, z, oldId, newId, time) -> {
+            if (y < 0 || y >= this.depth) return;
+            long pos = ChunkPos.asLong(x >> CHUNK_SHIFT, z >> CHUNK_SHIFT);
+            ChunkColumn column = touched.get(pos);
+            if (column == null) {
+                column = this.readColumn(x >> CHUNK_SHIFT, z >> CHUNK_SHIFT);
+                touched.put(pos, column);
+            }
+            column.set(x & (CHUNK_SIZE - 1), y, z & (CHUNK_SIZE - 1), newId);
+        });
+
+        if (touched.isEmpty()) return;
+
+        for (ChunkColumn column : touched.values()) {
+            column.compact();
+            column.calculateDerivedData();
+            this.storage.write(column);
+        }
+        this.changeLog.truncate();
+    }
+
+    public void save() {
+        try {
+            this.saveAsync().join();
+        } catch (Exception ignored) {
+        }
+    }
+
+    public CompletableFuture<Integer> saveAsync() {
+        List<ChunkColumn> snapshots = new ArrayList<>();
+        // Columns whose last write failed are written again, from the live column if it is still loaded
+        for (Map.Entry<Long, ChunkColumn> failed : this.failedSaves.entrySet()) {
+            ChunkColumn column = this.columns.get(failed.getKey().longValue());
+            if (column != null) {
+                column.setModified(true);
+            } else {
+                snapshots.add(failed.getValue());
+            }
+        }
+        for (ChunkColumn column : this.columns.values()) {
+            if (column.isModified()) {
+                snapshots.add(column.snapshot());
+                column.setModified(false);
+            }
+        }
+        this.changeLog.flush();
+        return this.writeColumns(snapshots, true);
+    }
 
-                    int i = (y * this.height + z) * this.width + x;
-                    int id = 0;
+    // Only a full save writes the level data and compacts the change log, unloads just store their columns.
+    // A column that fails to write stays pending so reloads still see it, and is retried by the next full save.
+    private CompletableFuture<Integer> writeColumns(List<ChunkColumn> columns, boolean fullSave) {
+        for (ChunkColumn column : columns) {
+            this.pendingSaves.put(column.getPos(), column);
+            this.failedSaves.remove(column.getPos());
+        }
 
-                    if (y == dh) {
-                        id = Blocks.GRASS.numericId;
-                    } else if (y < dh) {
-                        id = Blocks.DIRT.numericId;
+        long seed = this.seed;
+        int time = this.time;
+        ScheduledTicks scheduledTicks = fullSave ? this.scheduledTicks.copy() : null;
+        return CompletableFuture.supplyAsync(() -> {
+            IOException failure = null;
+            if (fullSave) {
+                try {
+                    this.writeLevelData(seed, time, scheduledTicks);
+                } catch (IOException e) {
+                    LOGGER.error("Failed to write level data", e);
+                    failure = e;
+                }
+            }
+
+            for (ChunkColumn column : columns) {
+                try {
+                    this.storage.write(column);
+                    this.pendingSaves.remove(column.getPos(), column);
+                    this.failedSaves.remove(column.getPos());
+                } catch (IOException e) {
+                    LOGGER.error("Failed to write column {}, {}", column.x, column.z, e);
+                    this.failedSaves.put(column.getPos(), column);
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
                     }
+                }
+            }
 
-                    if (y <= rh) {
-                        id = Blocks.STONE.numericId;
+            // The log is the only copy of edits to columns that failed to write, and of edits it failed to write
+            // itself before this save, so it is kept until every failed column made it to disk.
+            if (fullSave && this.failedSaves.isEmpty()) {
+                if (this.changeLogCompactable) {
+                    try {
+                        this.changeLog.truncate();
+                    } catch (IOException e) {
+                        LOGGER.error("Failed to truncate block changes", e);
                     }
+                }
+                this.changeLogCompactable = true;
+            }
+
+            if (failure != null) throw new UncheckedIOException(failure);
+            return columns.size();
+        }, this.saveExecutor);
+    }
+
+    private void writeLevelData(long seed, int time, ScheduledTicks scheduledTicks) throws IOException {
+        Files.createDirectories(SAVE_DIRECTORY);
+        try (DataOutputStream e = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(SAVE_DIRECTORY.resolve("level.dat"))))) {
+            e.writeLong(seed);
+            e.writeInt(time);
+            scheduledTicks.write(e);
+        }
+    }
+
+    public void close() {
+        this.changeLog.flush();
+        this.saveExecutor.shutdown();
+        try {
+            this.saveExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ignored) {
+        }
+
+        try {
+            this.changeLog.close();
+        } catch (IOException ignored) {
+        }
+        this.storage.close();
+    }
+
+    public void updateLoadedColumns(int blockX, int blockZ) {
+        int centerX = blockX >> CHUNK_SHIFT;
+        int centerZ = blockZ >> CHUNK_SHIFT;
+
+        ObjectIterator<ChunkColumn> iterator = this.columns.values().iterator();
+        while (iterator.hasNext()) {
+            ChunkColumn column = iterator.next();
+            if (Math.abs(column.x - centerX) > this.viewDistance + 1 || Math.abs(column.z - centerZ) > this.viewDistance + 1) {
+                iterator.remove();
+                this.publishedColumns.remove(column.getPos());
+                if (column.isModified()) {
+                    this.writeColumns(List.of(column), false);
+                }
+                if (this.lastColumn == column) this.lastColumn = null;
+                if (this.stateListener != null) this.stateListener.onColumnUnloaded(column.x, column.z);
+            }
+        }
 
-                    this.blocks[i] = (byte)id;
+        LongArrayList missing = new LongArrayList();
+        for (int x = centerX - this.viewDistance; x <= centerX + this.viewDistance; ++x) {
+            for (int z = centerZ - this.viewDistance; z <= centerZ + this.viewDistance; ++z) {
+                long pos = ChunkPos.asLong(x, z);
+                if (!this.columns.containsKey(pos)) {
+                    missing.add(pos);
                 }
             }
         }
+
+        if (missing.isEmpty()) return;
+
+        ChunkColumn[] loaded = new ChunkColumn[missing.size()];
+        IntStream.range(0, loaded.length).parallel().forEach(i -> {
+            long pos = missing.getLong(i);
+            ChunkColumn column = this.readColumn(ChunkPos.getX(pos), ChunkPos.getZ(pos));
+            column.initializeSkyLight();
+            loaded[i] = column;
+        });
+
+        for (ChunkColumn column : loaded) {
+            this.columns.put(column.getPos(), column);
+            this.lightEngine.initializeColumn(column);
+            if (this.stateListener != null) this.stateListener.onColumnLoaded(column.x, column.z);
+        }
+        this.lightEngine.propagate();
+        this.flushDirtyChunks();
+        this.publish();
+        for (ChunkColumn column : loaded) {
+            this.publishedColumns.put(column.getPos(), column);
+        }
     }
 
-    public boolean load() {
-        try (DataInputStream e = new DataInputStream(new GZIPInputStream(Files.newInputStream(Path.of("level.dat"))))) {
-            e.readFully(this.blocks);
-        } catch (Exception ignored) {
-            return false;
+    // Block and light edits made on the world thread become visible to other threads through
+    // copy-on-write section views, published here at the end of every tick.
+    public void publish() {
+        for (ChunkColumn column : this.columns.values()) {
+            column.publish();
         }
+    }
 
-        return true;
+    public SectionView getSectionView(int chunkX, int chunkY, int chunkZ) {
+        if (chunkY < 0 || chunkY >= this.depth >> CHUNK_SHIFT) return null;
+        ChunkColumn column = this.publishedColumns.get(ChunkPos.asLong(chunkX, chunkZ));
+        return column != null ? column.getView(chunkY) : null;
     }
 
-    public void save() {
-        try (DataOutputStream e = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(Path.of("level.dat"))))) {
-            e.write(this.blocks);
-        } catch (Exception ignored) {
+    private ChunkColumn readColumn(int x, int z) {
+        ChunkColumn column = new ChunkColumn(x, z, this.depth);
+        ChunkColumn pending = this.pendingSaves.get(column.getPos());
+        if (pending != null) {
+            column.copyFrom(pending);
+        } else if (!this.readStoredColumn(column)) {
+            // A column that failed to decode may be partly filled
+            column = new ChunkColumn(x, z, this.depth);
+            this.generator.generate(column);
+            column.compact();
+            column.calculateDerivedData();
+        }
+        return column;
+    }
+
+    private boolean readStoredColumn(ChunkColumn column) {
+        try {
+            return this.storage.read(column);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read column " + column.x + "," + column.z, e);
         }
     }
 
     public void tick() {
-        this.unprocessed += this.width * this.height * this.depth;
-        int ticks = this.unprocessed / 400;
-        this.unprocessed -= ticks * 400;
-
-        for(int i = 0; i < ticks; ++i) {
-            int x = this.random.nextInt(this.width);
-            int y = this.random.nextInt(this.depth);
-            int z = this.random.nextInt(this.height);
+        if (++this.time % CHANGE_LOG_FLUSH_INTERVAL == 0) {
+            this.changeLog.flush();
+        }
+
+        this.scheduledTicks.run(this.time, MAX_SCHEDULED_TICKS, pos -> {
+            int x = BlockPos.getX(pos);
+            int y = BlockPos.getY(pos);
+            int z = BlockPos.getZ(pos);
+            if (this.getColumn(x, z) == null) {
+                this.scheduledTicks.schedule(pos, this.time + UNLOADED_TICK_DELAY);
+            } else {
+                this.getBlock(x, y, z).scheduledTick(this, x, y, z, this.random);
+            }
+        });
+
+        // Every block still gets one random tick per 400 ticks on average, but sections without
+        // tickable blocks are skipped and the sampling runs in parallel before the ticks are applied.
+        List<RandomTicks> sections = new ArrayList<>();
+        for (ChunkColumn column : this.columns.values()) {
+            for (int i = 0; i < column.getSectionCount(); ++i) {
+                if (column.getTickableCount(i) == 0) continue;
+                this.unprocessed += ChunkSection.VOLUME;
+                int ticks = this.unprocessed / 400;
+                this.unprocessed -= ticks * 400;
+                if (ticks > 0) sections.add(new RandomTicks(column, i, ticks));
+            }
+        }
+
+        long[] positions = sections.parallelStream().flatMapToLong(RandomTicks::sample).toArray();
+        for (long pos : positions) {
+            int x = BlockPos.getX(pos);
+            int y = BlockPos.getY(pos);
+            int z = BlockPos.getZ(pos);
             Block tile = this.getBlock(x, y, z);
             if (tile.isTickable()) {
                 tile.tick(this, x, y, z, this.random);
             }
         }
+
+        this.publish();
+    }
+
+    private record RandomTicks(ChunkColumn column, int section, int count) {
+        LongStream sample() {
+            ChunkSection section = this.column.getSection(this.section);
+            Random random = ThreadLocalRandom.current();
+            LongStream.Builder positions = LongStream.builder();
+            for (int i = 0; i < this.count; ++i) {
+                int x = random.nextInt(CHUNK_SIZE);
+                int y = random.nextInt(CHUNK_SIZE);
+                int z = random.nextInt(CHUNK_SIZE);
+                if (Blocks.blocks[section.get(x, y, z)].isTickable()) {
+                    positions.add(BlockPos.asLong((this.column.x << CHUNK_SHIFT) + x, (this.section << CHUNK_SHIFT) + y, (this.column.z << CHUNK_SHIFT) + z));
+                }
+            }
+            return positions.build();
+        }
     }
 
     public void setStateListener(WorldStateListener stateListener) {
         this.stateListener = stateListener;
     }
 
-    public void calculateHeightMap() {
-        this.calculateHeightMap(0, 0, this.width, this.height);
+    public ChunkColumn getColumn(int x, int z) {
+        int chunkX = x >> CHUNK_SHIFT;
+        int chunkZ = z >> CHUNK_SHIFT;
+        ChunkColumn column = this.lastColumn;
+        if (column == null || column.x != chunkX || column.z != chunkZ) {
+            column = this.columns.get(ChunkPos.asLong(chunkX, chunkZ));
+            if (column != null) this.lastColumn = column;
+        }
+        return column;
     }
 
-    public void calculateHeightMap(int minX, int minZ, int maxX, int maxZ) {
-        for (int x = minX; x < maxX; ++x) {
-            for (int z = minZ; z < maxZ; ++z) {
-                int y = this.depth - 1;
-                for (; y >= 0; --y) {
-                    if (this.getBlockId(x, y, z) != 0) {
-                        break;
-                    }
-                }
-                this.heightmap[z * this.width + x] = (short) y;
-            }
+    public void setBlockId(int x, int y, int z, int id) {
+        if (y < 0 || y >= this.depth) return;
+        ChunkColumn column = this.getColumn(x, z);
+        if (column == null) return;
+        int oldId = column.get(x & (CHUNK_SIZE - 1), y, z & (CHUNK_SIZE - 1));
+        if (oldId != (id & 0xFF)) {
+            column.set(x & (CHUNK_SIZE - 1), y, z & (CHUNK_SIZE - 1), id & 0xFF);
+            column.updateHeightMap(x & (CHUNK_SIZE - 1), y, z & (CHUNK_SIZE - 1), id & 0xFF);
+            column.updateTickableCount(y, oldId, id & 0xFF);
+            this.changeLog.append(x, y, z, oldId, id & 0xFF, this.time);
+            this.lightEngine.onBlockChanged(x, y, z);
+            this.lightEngine.propagate();
+            column.setModified(true);
+            this.markDirty(x, y, z);
+            this.flushDirtyChunks();
         }
     }
 
-    private void notifyChangesOfBlock(int x, int y, int z) {
-        this.calculateHeightMap(x, z, x + 1, z + 1);
-        if (this.stateListener != null) {
-            int chunkX = x / CHUNK_SIZE;
-            int chunkY = y / CHUNK_SIZE;
-            int chunkZ = z / CHUNK_SIZE;
-            int localX = x % CHUNK_SIZE;
-            int localY = y % CHUNK_SIZE;
-            int localZ = z % CHUNK_SIZE;
-            this.stateListener.onChunkModified(chunkX, chunkY, chunkZ);
-            if (localX == 0) {
-                this.stateListener.onChunkModified(chunkX - 1, chunkY, chunkZ);
-            } else if (localX == CHUNK_SIZE - 1) {
-                this.stateListener.onChunkModified(chunkX + 1, chunkY, chunkZ);
+    public boolean scheduleTick(int x, int y, int z, int delay) {
+        if (y < 0 || y >= this.depth) return false;
+        return this.scheduledTicks.schedule(BlockPos.asLong(x, y, z), this.time + Math.max(delay, 1));
+    }
+
+    public int setBlockIds(long[] positions, int[] ids) {
+        int changed = 0;
+        for (int i = 0; i < positions.length; ++i) {
+            int x = BlockPos.getX(positions[i]);
+            int y = BlockPos.getY(positions[i]);
+            int z = BlockPos.getZ(positions[i]);
+            if (y >= this.depth) continue;
+            ChunkColumn column = this.getColumn(x, z);
+            if (column == null) continue;
+            int id = ids[i] & 0xFF;
+            int oldId = column.get(x & (CHUNK_SIZE - 1), y, z & (CHUNK_SIZE - 1));
+            if (oldId == id) continue;
+            column.set(x & (CHUNK_SIZE - 1), y, z & (CHUNK_SIZE - 1), id);
+            column.updateHeightMap(x & (CHUNK_SIZE - 1), y, z & (CHUNK_SIZE - 1), id);
+            column.updateTickableCount(y, oldId, id);
+            column.setModified(true);
+            this.changeLog.append(x, y, z, oldId, id, this.time);
+            this.lightEngine.onBlockChanged(x, y, z);
+            this.markDirty(x, y, z);
+            ++changed;
+        }
+        this.lightEngine.propagate();
+        this.flushDirtyChunks();
+        return changed;
+    }
+
+    public int fill(int x0, int y0, int z0, int x1, int y1, int z1, int id) {
+        return this.editRegion(x0, y0, z0, x1, y1, z1, (x, y, z, ids, offset, length) -> Arrays.fill(ids, offset, offset + length, id & 0xFF));
+    }
+
+    public int replace(int x0, int y0, int z0, int x1, int y1, int z1, int from, int to) {
+        int oldId = from & 0xFF;
+        int newId = to & 0xFF;
+        return this.editRegion(x0, y0, z0, x1, y1, z1, (x, y, z, ids, offset, length) -> {
+            for (int i = offset; i < offset + length; ++i) {
+                if (ids[i] == oldId) ids[i] = newId;
             }
-            if (localZ == 0) {
-                this.stateListener.onChunkModified(chunkX, chunkY, chunkZ - 1);
-            } else if (localZ == CHUNK_SIZE - 1) {
-                this.stateListener.onChunkModified(chunkX, chunkY, chunkZ + 1);
+        });
+    }
+
+    public BlockRegion copy(int x0, int y0, int z0, int x1, int y1, int z1) {
+        int minX = Math.min(x0, x1);
+        int minY = Math.min(y0, y1);
+        int minZ = Math.min(z0, z1);
+        BlockRegion region = new BlockRegion(Math.abs(x1 - x0) + 1, Math.abs(y1 - y0) + 1, Math.abs(z1 - z0) + 1);
+        int[] layer = new int[region.width * region.length];
+        for (int y = 0; y < region.height; ++y) {
+            this.getBlockIds(minX, minY + y, minZ, region.width, 1, region.length, layer);
+            for (int z = 0; z < region.length; ++z) {
+                region.setRow(0, y, z, region.width, layer, z * region.width);
             }
-            if (localY == 0) {
-                this.stateListener.onChunkModified(chunkX, chunkY - 1, chunkZ);
-            } else if (localY == CHUNK_SIZE - 1) {
-                this.stateListener.onChunkModified(chunkX, chunkY + 1, chunkZ);
+        }
+        return region;
+    }
+
+    public int paste(BlockRegion region, int x0, int y0, int z0) {
+        return this.editRegion(x0, y0, z0, x0 + region.width - 1, y0 + region.height - 1, z0 + region.length - 1, (x, y, z, ids, offset, length) -> region.getRow(x - x0, y - y0, z - z0, length, ids, offset));
+    }
+
+    // Edits every loaded block in the box one section at a time. Rows are read, rewritten by the editor
+    // and stored as spans, a section that ends up holding a single id is replaced as a whole. The change
+    // log, light and heightmap are then updated once per run of changed blocks, and every affected chunk
+    // is notified once.
+    public int editRegion(int x0, int y0, int z0, int x1, int y1, int z1, BlockEditor editor) {
+        int minX = Math.min(x0, x1);
+        int minY = Math.max(Math.min(y0, y1), 0);
+        int minZ = Math.min(z0, z1);
+        int maxX = Math.max(x0, x1);
+        int maxY = Math.min(Math.max(y0, y1), this.depth - 1);
+        int maxZ = Math.max(z0, z1);
+
+        int[] oldIds = new int[ChunkSection.VOLUME];
+        int[] newIds = new int[ChunkSection.VOLUME];
+        int[] tops = new int[CHUNK_SIZE * CHUNK_SIZE];
+        int changed = 0;
+        for (int chunkX = minX >> CHUNK_SHIFT; chunkX <= maxX >> CHUNK_SHIFT; ++chunkX) {
+            for (int chunkZ = minZ >> CHUNK_SHIFT; chunkZ <= maxZ >> CHUNK_SHIFT; ++chunkZ) {
+                ChunkColumn column = this.columns.get(ChunkPos.asLong(chunkX, chunkZ));
+                if (column == null) continue;
+
+                int originX = chunkX << CHUNK_SHIFT;
+                int originZ = chunkZ << CHUNK_SHIFT;
+                int fromX = Math.max(minX - originX, 0);
+                int toX = Math.min(maxX - originX, CHUNK_SIZE - 1);
+                int fromZ = Math.max(minZ - originZ, 0);
+                int toZ = Math.min(maxZ - originZ, CHUNK_SIZE - 1);
+                int width = toX - fromX + 1;
+                int columnChanged = 0;
+                Arrays.fill(tops, -1);
+
+                for (int chunkY = minY >> CHUNK_SHIFT; chunkY <= maxY >> CHUNK_SHIFT; ++chunkY) {
+                    ChunkSection section = column.getSection(chunkY);
+                    int originY = chunkY << CHUNK_SHIFT;
+                    int fromY = Math.max(minY - originY, 0);
+                    int toY = Math.min(maxY - originY, CHUNK_SIZE - 1);
+
+                    int size = 0;
+                    for (int y = fromY; y <= toY; ++y) {
+                        for (int z = fromZ; z <= toZ; ++z, size += width) {
+                            section.getRow(fromX, y, z, width, oldIds, size);
+                            System.arraycopy(oldIds, size, newIds, size, width);
+                            editor.apply(originX + fromX, originY + y, originZ + z, newIds, size, width);
+                            for (int i = 0; i < width; ++i) {
+                                if (newIds[size + i] != 0) tops[z * CHUNK_SIZE + fromX + i] = originY + y;
+                            }
+                        }
+                    }
+                    if (Arrays.equals(oldIds, 0, size, newIds, 0, size)) continue;
+
+                    if (size == ChunkSection.VOLUME && isSingleId(newIds)) {
+                        section.fill(newIds[0]);
+                    } else {
+                        for (int y = fromY, row = 0; y <= toY; ++y) {
+                            for (int z = fromZ; z <= toZ; ++z, row += width) {
+                                if (!Arrays.equals(oldIds, row, row + width, newIds, row, row + width)) {
+                                    section.setRow(fromX, y, z, width, newIds, row);
+                                }
+                            }
+                        }
+                    }
+
+                    int changedMinX = CHUNK_SIZE, changedMinY = CHUNK_SIZE, changedMinZ = CHUNK_SIZE;
+                    int changedMaxX = -1, changedMaxY = -1, changedMaxZ = -1;
+                    for (int y = fromY, row = 0; y <= toY; ++y) {
+                        for (int z = fromZ; z <= toZ; ++z, row += width) {
+                            if (Arrays.equals(oldIds, row, row + width, newIds, row, row + width)) continue;
+
+                            this.changeLog.appendRow(originX + fromX, originY + y, originZ + z, oldIds, newIds, row, width, this.time);
+                            for (int i = 0; i < width; ) {
+                                if (oldIds[row + i] == newIds[row + i]) {
+                                    ++i;
+                                    continue;
+                                }
+                                int run = i;
+                                for (; i < width && oldIds[row + i] != newIds[row + i]; ++i) {
+                                    column.updateTickableCount(originY + y, oldIds[row + i], newIds[row + i]);
+                                }
+                                this.lightEngine.onBlocksChanged(originX + fromX + run, originY + y, originZ + z, i - run);
+                                columnChanged += i - run;
+                                changedMinX = Math.min(changedMinX, fromX + run);
+                                changedMaxX = Math.max(changedMaxX, fromX + i - 1);
+                            }
+                            changedMinY = Math.min(changedMinY, y);
+                            changedMinZ = Math.min(changedMinZ, z);
+                            changedMaxY = Math.max(changedMaxY, y);
+                            changedMaxZ = Math.max(changedMaxZ, z);
+                        }
+                    }
+
+                    this.markDirty(originX + changedMinX, originY + changedMinY, originZ + changedMinZ);
+                    this.markDirty(originX + changedMaxX, originY + changedMaxY, originZ + changedMaxZ);
+                }
+
+                if (columnChanged > 0) {
+                    for (int z = fromZ; z <= toZ; ++z) {
+                        for (int x = fromX; x <= toX; ++x) {
+                            column.updateHeightMap(x, z, minY, maxY, tops[z * CHUNK_SIZE + x]);
+                        }
+                    }
+                    column.setModified(true);
+                    changed += columnChanged;
+                }
             }
         }
+
+        this.lightEngine.propagate();
+        this.flushDirtyChunks();
+        return changed;
     }
 
-    public boolean isOutOfBounds(int x, int y, int z) {
-        return x < 0 || y < 0 || z < 0 || x >= this.width || y >= this.depth || z >= this.height;
+    private static boolean isSingleId(int[] ids) {
+        for (int i = 1; i < ids.length; ++i) {
+            if (ids[i] != ids[0]) return false;
+        }
+        return true;
     }
 
-    public void setBlockId(int x, int y, int z, int id) {
-        if (this.isOutOfBounds(x, y, z)) return;
-        this.blocks[(y * this.height + z) * this.width + x] = (byte) id;
-        this.notifyChangesOfBlock(x, y, z);
+    // Adds the chunk of the block and the neighbours whose faces it borders.
+    private void markDirty(int x, int y, int z) {
+        int chunkX = x >> CHUNK_SHIFT;
+        int chunkY = y >> CHUNK_SHIFT;
+        int chunkZ = z >> CHUNK_SHIFT;
+        int localX = x & (CHUNK_SIZE - 1);
+        int localY = y & (CHUNK_SIZE - 1);
+        int localZ = z & (CHUNK_SIZE - 1);
+        this.dirtyChunks.add(BlockPos.asLong(chunkX, chunkY, chunkZ));
+        if (localX == 0) this.dirtyChunks.add(BlockPos.asLong(chunkX - 1, chunkY, chunkZ));
+        if (localX == CHUNK_SIZE - 1) this.dirtyChunks.add(BlockPos.asLong(chunkX + 1, chunkY, chunkZ));
+        if (localZ == 0) this.dirtyChunks.add(BlockPos.asLong(chunkX, chunkY, chunkZ - 1));
+        if (localZ == CHUNK_SIZE - 1) this.dirtyChunks.add(BlockPos.asLong(chunkX, chunkY, chunkZ + 1));
+        if (localY == 0 && chunkY > 0) this.dirtyChunks.add(BlockPos.asLong(chunkX, chunkY - 1, chunkZ));
+        if (localY == CHUNK_SIZE - 1 && (chunkY + 1) << CHUNK_SHIFT < this.depth) this.dirtyChunks.add(BlockPos.asLong(chunkX, chunkY + 1, chunkZ));
     }
 
+    private void flushDirtyChunks() {
+        if (this.stateListener != null) {
+            LongIterator iterator = this.dirtyChunks.iterator();
+            while (iterator.hasNext()) {
+                long pos = iterator.nextLong();
+                this.stateListener.onChunkModified(BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos));
+            }
+        }
+        this.dirtyChunks.clear();
+    }
+
+    @Override
     public int getBlockId(int x, int y, int z) {
-        if (this.isOutOfBounds(x, y, z)) return 0;
-        return this.blocks[(y * this.height + z) * this.width + x];
+        if (y < 0 || y >= this.depth) return 0;
+        ChunkColumn column = this.getColumn(x, z);
+        if (column == null) return 0;
+        return column.get(x & (CHUNK_SIZE - 1), y, z & (CHUNK_SIZE - 1));
+    }
+
+    @Override
+    public void getBlockIds(int x, int y, int z, int sizeX, int sizeY, int sizeZ, int[] out) {
+        int i = 0;
+        for (int blockY = y; blockY < y + sizeY; ++blockY) {
+            for (int blockZ = z; blockZ < z + sizeZ; ++blockZ, i += sizeX) {
+                if (blockY < 0 || blockY >= this.depth) {
+                    Arrays.fill(out, i, i + sizeX, 0);
+                    continue;
+                }
+
+                for (int blockX = x; blockX < x + sizeX; ) {
+                    int span = Math.min(x + sizeX, (blockX | (CHUNK_SIZE - 1)) + 1) - blockX;
+                    int offset = i + blockX - x;
+                    ChunkColumn column = this.getColumn(blockX, blockZ);
+                    if (column == null) {
+                        Arrays.fill(out, offset, offset + span, 0);
+                    } else {
+                        column.getSection(blockY >> CHUNK_SHIFT).getRow(blockX & (CHUNK_SIZE - 1), blockY & (CHUNK_SIZE - 1), blockZ & (CHUNK_SIZE - 1), span, out, offset);
+                    }
+                    blockX += span;
+                }
+            }
+        }
     }
 
+    @Override
     public Block getBlock(int x, int y, int z) {
         return Blocks.blocks[this.getBlockId(x, y, z)];
     }
 
+    public int getLight(int x, int y, int z) {
+        if (y < 0 || y >= this.depth) return LightEngine.MAX_LIGHT;
+        ChunkColumn column = this.getColumn(x, z);
+        if (column == null) return LightEngine.MAX_LIGHT;
+        int localX = x & (CHUNK_SIZE - 1);
+        int localZ = z & (CHUNK_SIZE - 1);
+        return Math.max(column.getLight(ChunkColumn.SKY_LIGHT, localX, y, localZ), column.getLight(ChunkColumn.BLOCK_LIGHT, localX, y, localZ));
+    }
+
+    // Opaque blocks hold no light themselves, they count as lit when their top face is.
     public boolean isLit(int x, int y, int z) {
-        if (this.isOutOfBounds(x, y, z)) return true;
-        return y >= this.heightmap[x + z * this.width];
+        if (this.getBlock(x, y, z).isOpaque()) ++y;
+        return this.getLight(x, y, z) == LightEngine.MAX_LIGHT;
     }
 
+    @Override
     public float getBrigthness(int x, int y, int z) {
-        if (this.isOutOfBounds(x, y, z) || this.heightmap[z * this.width + x] <= y) return 1f;
-        return 0.5f;
+        return LightEngine.getBrightness(this.getLight(x, y, z));
     }
 
     public List<Box> getCubes(Box box) {
         List<Box> boxes = new ArrayList<>();
-        int x0 = (int) Math.clamp(box.minX, 0, this.width);
-        int x1 = (int) Math.clamp(box.maxX + 1.0f, 0, this.width);
+        int x0 = (int) Math.floor(box.minX);
+        int x1 = (int) Math.floor(box.maxX + 1.0f);
         int y0 = (int) Math.clamp(box.minY, 0, this.depth);
         int y1 = (int) Math.clamp(box.maxY + 1.0f, 0, this.depth);
-        int z0 = (int) Math.clamp(box.minZ, 0, this.height);
-        int z1 = (int) Math.clamp(box.maxZ + 1.0f, 0, this.height);
+        int z0 = (int) Math.floor(box.minZ);
+        int z1 = (int) Math.floor(box.maxZ + 1.0f);
+        if (y0 >= y1) return boxes;
 
+        int[] ids = new int[(x1 - x0) * (y1 - y0) * (z1 - z0)];
+        this.getBlockIds(x0, y0, z0, x1 - x0, y1 - y0, z1 - z0, ids);
+        int i = 0;
         for (int y = y0; y < y1; ++y) {
             for (int z = z0; z < z1; ++z) {
                 for (int x = x0; x < x1; ++x) {
-                    if (this.getBlockId(x, y, z) != 0) {
+                    if (ids[i++] != 0) {
                         boxes.add(new Box(x, y, z, x + 1, y + 1, z + 1));
                     }
                 }
@@ -291,7 +835,17 @@ public class World {
         return null;
     }
 
+    // Gets the current ids of a run along x starting at (x, y, z) and rewrites them in place.
+    @FunctionalInterface
+    public interface BlockEditor {
+        void apply(int x, int y, int z, int[] ids, int offset, int length);
+    }
+
     public interface WorldStateListener {
         void onChunkModified(int chunkX, int chunkY, int chunkZ);
+
+        void onColumnLoaded(int chunkX, int chunkZ);
+
+        void onColumnUnloaded(int chunkX, int chunkZ);
     }
 }
@@ -0,0 +1,12 @@
+package me.kalmemarq.block;
+
+public class AirBlock extends Block {
+    public AirBlock(int numericId) {
+        super(numericId, new int[0]);
+    }
+
+    @Override
+    public boolean isOpaque() {
+        return false;
+    }
+}
@@ -7,6 +7,7 @@ import me.kalmemarq.util.BlockHitResult;
 import me.kalmemarq.util.Box;
 import me.kalmemarq.util.Direction;
 import me.kalmemarq.util.MathUtils;
+import me.kalmemarq.world.BlockView;
 import org.joml.Matrix4f;
 import org.joml.Vector3d;
 
@@ -24,6 +25,14 @@ public class Block {
         this.sideTextures = sideTextures;
     }
 
+    public boolean isOpaque() {
+        return true;
+    }
+
+    public int getLightEmission() {
+        return 0;
+    }
+
     public boolean isTickable() {
         return false;
     }
@@ -31,7 +40,10 @@ public class Block {
     public void tick(World world, int x, int y, int z, Random random) {
     }
 
-    public int render(World world, MatrixStack matrices, BufferBuilder builder, int x, int y, int z, int layer) {
+    public void scheduledTick(World world, int x, int y, int z, Random random) {
+    }
+
+    public int render(BlockView world, MatrixStack matrices, BufferBuilder builder, int x, int y, int z, int layer) {
         int rendered = 0;
 
         float x0 = 0f;
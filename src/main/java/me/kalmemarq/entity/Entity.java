@@ -15,8 +15,8 @@ public class Entity {
     public Vector3f prevPosition = new Vector3f();
     public Vector3f velocity = new Vector3f();
     public Vector2f size = new Vector2f(0.6f, 1.8f);
-    public float yaw = 90f;
-    public float pitch;
+    public volatile float yaw = 90f;
+    public volatile float pitch;
     public float eyeHeight = this.size.y - 0.18f;
     public Box box;
     public boolean onGround;
@@ -36,9 +36,9 @@ public class Entity {
 
     public void goToRandomPosition() {
         this.setPosition(
-                (float) Math.random() * (float) this.world.width,
+                (float) Math.random() * (float) World.SPAWN_SIZE,
                 (float) (this.world.depth + 10),
-                (float) Math.random() * (float) this.world.height
+                (float) Math.random() * (float) World.SPAWN_SIZE
         );
     }
 
@@ -127,7 +127,15 @@ public class Entity {
         }
     }
 
+    protected float getAnimationOffset() {
+        return 0f;
+    }
+
+    public EntityState createState() {
+        return new EntityState(new Vector3f(this.prevPosition), new Vector3f(this.position), this.yaw, this.eyeHeight, this.size.x, this.getAnimationOffset(), new Box(this.box), this.isLit());
+    }
+
     public boolean isLit() {
-        return this.world.isLit((int) this.position.x, (int) (this.position.y + this.eyeHeight), (int) this.position.z);
+        return this.world.isLit((int) Math.floor(this.position.x), (int) (this.position.y + this.eyeHeight), (int) Math.floor(this.position.z));
     }
 }
@@ -0,0 +1,8 @@
+package me.kalmemarq.entity;
+
+import me.kalmemarq.util.Box;
+import org.joml.Vector3f;
+
+// What the renderer needs of an entity, copied at the end of a tick so frames never see a tick in progress.
+public record EntityState(Vector3f prevPosition, Vector3f position, float yaw, float eyeHeight, float width, float animationOffset, Box box, boolean lit) {
+}
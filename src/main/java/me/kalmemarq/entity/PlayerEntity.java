@@ -1,16 +1,28 @@
 package me.kalmemarq.entity;
 
-import me.kalmemarq.Game;
 import me.kalmemarq.World;
 import me.kalmemarq.util.BlockHitResult;
-import me.kalmemarq.util.Keybinding;
 import org.joml.Vector3d;
 
 public class PlayerEntity extends Entity {
+    public static final int INPUT_FORWARDS = 1;
+    public static final int INPUT_BACKWARD = 1 << 1;
+    public static final int INPUT_STRAFE_LEFT = 1 << 2;
+    public static final int INPUT_STRAFE_RIGHT = 1 << 3;
+    public static final int INPUT_JUMP = 1 << 4;
+    public static final int INPUT_DESCEND = 1 << 5;
+
+    // Sampled from the keyboard on the main thread, GLFW may not be polled from the simulation thread.
+    private volatile int input;
+
     public PlayerEntity(World world) {
         super(world);
     }
 
+    public void setInput(int input) {
+        this.input = input;
+    }
+
     public BlockHitResult raytrace(double reach) {
         Vector3d start = this.getCameraPosition();
         Vector3d look = this.getLook();
@@ -21,30 +33,31 @@ public class PlayerEntity extends Entity {
     @Override
     public void tick() {
         super.tick();
+        int input = this.input;
         float xd = 0;
         float zd = 0;
 
-        if (Keybinding.FOWARDS.isPressed(Game.getInstance().getWindow())) {
+        if ((input & INPUT_FORWARDS) != 0) {
             zd -= 1;
         }
 
-        if (Keybinding.BACKWARD.isPressed(Game.getInstance().getWindow())) {
+        if ((input & INPUT_BACKWARD) != 0) {
             zd += 1;
         }
 
-        if (Keybinding.STRAFE_LEFT.isPressed(Game.getInstance().getWindow())) {
+        if ((input & INPUT_STRAFE_LEFT) != 0) {
             xd -= 1;
         }
 
-        if (Keybinding.STRAFE_RIGHT.isPressed(Game.getInstance().getWindow())) {
+        if ((input & INPUT_STRAFE_RIGHT) != 0) {
             xd += 1;
         }
 
-        if ((this.onGround || this.canFly) && Keybinding.JUMP.isPressed(Game.getInstance().getWindow())) {
+        if ((this.onGround || this.canFly) && (input & INPUT_JUMP) != 0) {
             this.velocity.y = 0.5f;
         }
 
-        if (Keybinding.DESCEND.isPressed(Game.getInstance().getWindow())) {
+        if ((input & INPUT_DESCEND) != 0) {
             this.velocity.y = -0.5f;
         }
 
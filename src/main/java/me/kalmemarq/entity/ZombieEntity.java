@@ -10,6 +10,11 @@ public class ZombieEntity extends Entity {
         super(world);
     }
 
+    @Override
+    protected float getAnimationOffset() {
+        return this.timeOffs;
+    }
+
     @Override
     public void tick() {
         super.tick();
@@ -1,7 +1,7 @@
 package me.kalmemarq.entity.model;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import me.kalmemarq.entity.ZombieEntity;
+import me.kalmemarq.entity.EntityState;
 import me.kalmemarq.render.MatrixStack;
 import me.kalmemarq.render.vertex.BufferBuilder;
 import me.kalmemarq.util.IOUtils;
@@ -23,7 +23,7 @@ public abstract class Model {
         }
     }
 
-    abstract public void render(BufferBuilder builder, ZombieEntity entity, float brightness, float tickDelta);
+    abstract public void render(BufferBuilder builder, EntityState entity, float brightness, float tickDelta);
 
     public static class ModelPart {
         public float yaw;
@@ -1,6 +1,6 @@
 package me.kalmemarq.entity.model;
 
-import me.kalmemarq.entity.ZombieEntity;
+import me.kalmemarq.entity.EntityState;
 import me.kalmemarq.render.MatrixStack;
 import me.kalmemarq.render.vertex.BufferBuilder;
 import me.kalmemarq.util.TimeUtils;
@@ -26,20 +26,20 @@ public class ZombieModel extends Model {
     }
 
     @Override
-    public void render(BufferBuilder builder, ZombieEntity entity, float brightness, float tickDelta) {
+    public void render(BufferBuilder builder, EntityState entity, float brightness, float tickDelta) {
         MatrixStack matrices = MatrixStack.INSTANCE;
         matrices.push();
 
-        matrices.translate(org.joml.Math.lerp(entity.prevPosition.x, entity.position.x, tickDelta),
-                org.joml.Math.lerp(entity.prevPosition.y, entity.position.y, tickDelta),
-                org.joml.Math.lerp(entity.prevPosition.z, entity.position.z, tickDelta));
+        matrices.translate(org.joml.Math.lerp(entity.prevPosition().x, entity.position().x, tickDelta),
+                org.joml.Math.lerp(entity.prevPosition().y, entity.position().y, tickDelta),
+                org.joml.Math.lerp(entity.prevPosition().z, entity.position().z, tickDelta));
         float size = 1.86f / 32f;
-        double time = (double) TimeUtils.getCurrentMillis() / 1E3d * 10d + (double)entity.timeOffs;
+        double time = (double) TimeUtils.getCurrentMillis() / 1E3d * 10d + (double)entity.animationOffset();
         float yy = (float)(-Math.abs(Math.sin(time * 0.6662d)) * 5d - 23d);
         matrices.scale(1f, -1f, 1f);
         matrices.scale(size, size, size);
         matrices.translate(0f, yy, 0f);
-        matrices.rotateY(entity.yaw + ((float) Math.PI / 2f));
+        matrices.rotateY(entity.yaw() + ((float) Math.PI / 2f));
 
         this.head.pitch = (float) Math.sin(time * 0.83d);
         this.head.yaw = (float) Math.sin(time) * 0.8F;
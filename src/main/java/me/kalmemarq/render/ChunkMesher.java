@@ -0,0 +1,186 @@
+package me.kalmemarq.render;
+
+import me.kalmemarq.World;
+import me.kalmemarq.block.Blocks;
+import me.kalmemarq.render.vertex.BufferBuilder;
+import me.kalmemarq.world.BlockView;
+
+// Merges coplanar faces that share a texture and a light value into larger quads.
+// Each vertex carries its atlas tile and the distance across the quad in blocks,
+// terrain.frag.glsl wraps that distance so the tile repeats once per block.
+public class ChunkMesher {
+    private static final int SIZE = World.CHUNK_SIZE;
+    // The chunk plus a one block border, so every neighbour lookup is a plain array read.
+    private static final int PADDED = SIZE + 2;
+    private static final int[] NEIGHBOUR_OFFSET = {-PADDED * PADDED, PADDED * PADDED, -PADDED, PADDED, -1, 1};
+    private static final int[] NORMAL_AXIS = {1, 1, 2, 2, 0, 0};
+    private static final int[] U_AXIS = {0, 0, 0, 0, 2, 2};
+    private static final int[] V_AXIS = {2, 2, 1, 1, 1, 1};
+    private static final float[] SHADE = {1f, 1f, 0.8f, 0.8f, 0.6f, 0.6f};
+    // Quad corners in (u, v) steps, in the winding Block.render uses for the same face.
+    private static final int[][] CORNERS = {
+        {0, 0, 1, 0, 1, 1, 0, 1},
+        {0, 0, 0, 1, 1, 1, 1, 0},
+        {0, 0, 0, 1, 1, 1, 1, 0},
+        {0, 0, 1, 0, 1, 1, 0, 1},
+        {0, 0, 1, 0, 1, 1, 0, 1},
+        {0, 0, 0, 1, 1, 1, 1, 0}
+    };
+    private static final boolean[] FLIP_U = {false, false, true, false, false, true};
+    private static final boolean[] FLIP_V = {false, false, true, true, true, true};
+    // Bit offset of each axis in a packed terrain position, x, y, z take one byte each.
+    private static final int[] AXIS_SHIFT = {0, 8, 16};
+
+    private final int[] blocks = new int[PADDED * PADDED * PADDED];
+    private final float[] brightness = new float[PADDED * PADDED * PADDED];
+    private final int[][] masks = new int[2][SIZE * SIZE];
+    private final int[] pos = new int[3];
+    private boolean empty;
+
+    // Copies the chunk and its border, build and hash then only read the copy.
+    public void snapshot(BlockView view, int chunkX, int chunkY, int chunkZ) {
+        int x = chunkX * SIZE - 1;
+        int y = chunkY * SIZE - 1;
+        int z = chunkZ * SIZE - 1;
+        view.getBlockIds(x, y, z, PADDED, PADDED, PADDED, this.blocks);
+        this.empty = this.computeEmpty();
+        if (!this.empty) {
+            view.getBrigthness(x, y, z, PADDED, PADDED, PADDED, this.brightness);
+        }
+    }
+
+    // Covers everything the mesh of the last snapshot is built from, only meaningful if it is not empty.
+    public long hash() {
+        long hash = 0L;
+        for (int i = 0; i < this.blocks.length; ++i) {
+            hash = Long.rotateLeft(hash ^ this.blocks[i] * 0x9E3779B97F4A7C15L, 27) * 0xBF58476D1CE4E5B9L;
+            hash = Long.rotateLeft(hash ^ Float.floatToRawIntBits(this.brightness[i]) * 0x9E3779B97F4A7C15L, 27) * 0xBF58476D1CE4E5B9L;
+        }
+        return hash;
+    }
+
+    public boolean isEmpty() {
+        return this.empty;
+    }
+
+    // Meshes both layers of the last snapshot in one walk, builders[0] gets the fully lit faces and builders[1] the shadowed ones.
+    public void build(BufferBuilder[] builders) {
+        if (this.empty) return;
+
+        for (int face = 0; face < 6; ++face) {
+            for (int depth = 0; depth < SIZE; ++depth) {
+                int layers = this.fillMasks(face, depth);
+                for (int layer = 0; layer < 2; ++layer) {
+                    if ((layers & 1 << layer) != 0) {
+                        this.mergeMask(this.masks[layer], builders[layer], face, depth);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int paddedIndex(int x, int y, int z) {
+        return ((y + 1) * PADDED + z + 1) * PADDED + x + 1;
+    }
+
+    private boolean computeEmpty() {
+        for (int y = 0; y < SIZE; ++y) {
+            for (int z = 0; z < SIZE; ++z) {
+                int row = paddedIndex(0, y, z);
+                for (int x = 0; x < SIZE; ++x) {
+                    if (this.blocks[row + x] != 0) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Returns a bit per layer that received at least one face.
+    private int fillMasks(int face, int depth) {
+        int[] pos = this.pos;
+        int[] litMask = this.masks[0];
+        int[] shadowedMask = this.masks[1];
+        int[] blocks = this.blocks;
+        int normal = NORMAL_AXIS[face];
+        int neighbourOffset = NEIGHBOUR_OFFSET[face];
+        int layers = 0;
+
+        pos[normal] = depth;
+        for (int v = 0; v < SIZE; ++v) {
+            pos[V_AXIS[face]] = v;
+            for (int u = 0; u < SIZE; ++u) {
+                pos[U_AXIS[face]] = u;
+                int lit = 0;
+                int shadowed = 0;
+                int index = paddedIndex(pos[0], pos[1], pos[2]);
+                int id = blocks[index];
+                if (id != 0 && blocks[index + neighbourOffset] == 0) {
+                    float brightness = this.brightness[index + neighbourOffset];
+                    int color = (int) (brightness * SHADE[face] * 255.0f);
+                    int key = Blocks.blocks[id].sideTextures[face] << 8 | color;
+                    if (brightness == 1.0f) {
+                        lit = key;
+                        layers |= 1;
+                    } else {
+                        shadowed = key;
+                        layers |= 2;
+                    }
+                }
+                litMask[v * SIZE + u] = lit;
+                shadowedMask[v * SIZE + u] = shadowed;
+            }
+        }
+        return layers;
+    }
+
+    private void mergeMask(int[] mask, BufferBuilder builder, int face, int depth) {
+        for (int v = 0; v < SIZE; ++v) {
+            for (int u = 0; u < SIZE; ) {
+                int key = mask[v * SIZE + u];
+                if (key == 0) {
+                    ++u;
+                    continue;
+                }
+
+                int width = 1;
+                while (u + width < SIZE && mask[v * SIZE + u + width] == key) ++width;
+
+                int height = 1;
+                expand:
+                while (v + height < SIZE) {
+                    int row = (v + height) * SIZE + u;
+                    for (int i = 0; i < width; ++i) {
+                        if (mask[row + i] != key) break expand;
+                    }
+                    ++height;
+                }
+
+                for (int j = 0; j < height; ++j) {
+                    for (int i = 0; i < width; ++i) {
+                        mask[(v + j) * SIZE + u + i] = 0;
+                    }
+                }
+
+                this.emitQuad(builder, face, depth, u, v, width, height, key >> 8, key & 0xFF);
+                u += width;
+            }
+        }
+    }
+
+    // Corners are offsets added to the packed origin, no axis ever exceeds 32 so nothing carries into the next byte.
+    private void emitQuad(BufferBuilder builder, int face, int depth, int u, int v, int width, int height, int texture, int color) {
+        int uShift = AXIS_SHIFT[U_AXIS[face]];
+        int vShift = AXIS_SHIFT[V_AXIS[face]];
+        int origin = (depth + (face & 1)) << AXIS_SHIFT[NORMAL_AXIS[face]] | u << uShift | v << vShift | color << 24;
+        int[] corners = CORNERS[face];
+        boolean flipU = FLIP_U[face];
+        boolean flipV = FLIP_V[face];
+        for (int i = 0; i < 8; i += 2) {
+            int cornerU = corners[i] * width;
+            int cornerV = corners[i + 1] * height;
+            int textureU = flipU ? width - cornerU : cornerU;
+            int textureV = flipV ? height - cornerV : cornerV;
+            builder.terrainVertex(origin + (cornerU << uShift) + (cornerV << vShift), BufferBuilder.packTerrainUV(texture, textureU, textureV));
+        }
+    }
+}
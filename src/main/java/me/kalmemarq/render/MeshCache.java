@@ -0,0 +1,157 @@
+package me.kalmemarq.render;
+
+import me.kalmemarq.render.vertex.VertexLayout;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Finished chunk meshes stored next to the save, each file holds the snapshot hash it was built from.
+// Past MAX_ENTRIES files the least recently used quarter is deleted.
+public class MeshCache {
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4;
+    private static final int MAX_ENTRIES = 8192;
+    private static final String EXTENSION = ".mesh";
+
+    private final Path directory;
+    private int entries = -1;
+
+    public MeshCache(Path directory) {
+        this.directory = directory;
+    }
+
+    private Path getPath(int x, int y, int z) {
+        return this.directory.resolve("c." + x + "." + y + "." + z + EXTENSION);
+    }
+
+    // Fills buffers and vertexCounts and returns true only if the stored mesh was built from the same hash.
+    public boolean read(int x, int y, int z, long hash, ByteBuffer[] buffers, int[] vertexCounts) {
+        Path path = this.getPath(x, y, z);
+        if (!Files.exists(path)) return false;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header);
+            header.flip();
+            if (header.getInt() != FORMAT || header.getLong() != hash) return false;
+
+            for (int layer = 0; layer < 2; ++layer) {
+                vertexCounts[layer] = header.getInt();
+            }
+            for (int layer = 0; layer < 2; ++layer) {
+                if (vertexCounts[layer] == 0) continue;
+                buffers[layer] = MemoryUtil.memAlloc(vertexCounts[layer] * VertexLayout.TERRAIN.stride);
+                readFully(channel, buffers[layer]);
+                buffers[layer].flip();
+            }
+        } catch (Exception ignored) {
+            for (int layer = 0; layer < 2; ++layer) {
+                if (buffers[layer] != null) MemoryUtil.memFree(buffers[layer]);
+                buffers[layer] = null;
+                vertexCounts[layer] = 0;
+            }
+            return false;
+        }
+
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+        }
+        return true;
+    }
+
+    public void write(int x, int y, int z, long hash, ByteBuffer[] buffers, int[] vertexCounts) {
+        Path path = this.getPath(x, y, z);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(this.directory);
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(FORMAT).putLong(hash).putInt(vertexCounts[0]).putInt(vertexCounts[1]).flip();
+                writeFully(channel, header);
+                for (int layer = 0; layer < 2; ++layer) {
+                    if (vertexCounts[layer] == 0) continue;
+                    writeFully(channel, buffers[layer].duplicate().clear().limit(vertexCounts[layer] * VertexLayout.TERRAIN.stride));
+                }
+            }
+            boolean replaced = Files.exists(path);
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (!replaced) this.addEntries(1);
+        } catch (IOException ignored) {
+        }
+    }
+
+    public void delete(int x, int y, int z) {
+        try {
+            if (Files.deleteIfExists(this.getPath(x, y, z))) this.addEntries(-1);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private synchronized void addEntries(int count) {
+        if (this.entries < 0) {
+            this.entries = this.listEntries().size();
+        } else {
+            this.entries += count;
+        }
+
+        if (this.entries > MAX_ENTRIES) {
+            List<Path> paths = this.listEntries();
+            Map<Path, Long> lastModified = new HashMap<>();
+            for (Path path : paths) {
+                lastModified.put(path, getLastModified(path));
+            }
+            paths.sort(Comparator.comparingLong(lastModified::get));
+            int remove = paths.size() - MAX_ENTRIES * 3 / 4;
+            for (int i = 0; i < remove; ++i) {
+                try {
+                    Files.deleteIfExists(paths.get(i));
+                } catch (IOException ignored) {
+                }
+            }
+            this.entries = paths.size() - Math.max(remove, 0);
+        }
+    }
+
+    private List<Path> listEntries() {
+        try (Stream<Path> paths = Files.list(this.directory)) {
+            return paths.filter(path -> path.getFileName().toString().endsWith(EXTENSION)).collect(Collectors.toList());
+        } catch (IOException ignored) {
+            return new ArrayList<>();
+        }
+    }
+
+    private static long getLastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException ignored) {
+            return 0L;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new IOException("Truncated mesh cache entry");
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
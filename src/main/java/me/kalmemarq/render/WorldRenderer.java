@@ -1,158 +1,410 @@
 package me.kalmemarq.render;
 
-import me.kalmemarq.block.Block;
-import me.kalmemarq.block.Blocks;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import me.kalmemarq.render.vertex.BufferBuilder;
 import me.kalmemarq.render.vertex.VertexBuffer;
 import me.kalmemarq.render.vertex.VertexLayout;
 import me.kalmemarq.util.Box;
 import me.kalmemarq.World;
+import me.kalmemarq.world.ChunkPos;
+import me.kalmemarq.world.PublishedBlockView;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.lwjgl.system.MemoryUtil;
 
 import java.io.Closeable;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class WorldRenderer implements Closeable, World.WorldStateListener {
+    private static final Logger LOGGER = LogManager.getLogger("Renderer");
     public static int chunksRendererPerFrame = 0;
     public static int currentChunksRendererPerFrame = 0;
+    private static final int INITIAL_MESH_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_PENDING_BUILDS = 32;
+    private static final long FRAME_BUDGET_NANOS = 2_000_000L;
+    private static final int UPLOAD_BUDGET_BYTES = 4 * 1024 * 1024;
+    // Player edits first, then what is on screen, then everything else, nearest first within each group.
+    private static final Comparator<Chunk> REBUILD_ORDER = Comparator.comparing((Chunk chunk) -> !chunk.urgent).thenComparing(chunk -> !chunk.visible).thenComparingDouble(chunk -> chunk.distance);
+    private static final ThreadLocal<ChunkMesher> MESHERS = ThreadLocal.withInitial(ChunkMesher::new);
 
-    private final Chunk[] chunks;
-    private final int xChunks;
+    private final World world;
+    private final Long2ObjectOpenHashMap<Chunk[]> columns = new Long2ObjectOpenHashMap<>();
     private final int yChunks;
-    private final int zChunks;
+    private final ExecutorService meshExecutor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 2), runnable -> {
+        Thread thread = new Thread(runnable, "Chunk Mesher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Growable scratch builders checked out by the mesher threads, finished meshes are copied out of them.
+    private final Queue<BufferBuilder> scratchBuilders = new ConcurrentLinkedQueue<>();
+    private final Queue<ChunkMesh> uploads = new ConcurrentLinkedQueue<>();
+    private final List<Chunk> rebuildQueue = new ArrayList<>();
+    private final MeshCache meshCache = new MeshCache(World.SAVE_DIRECTORY.resolve("meshes"));
+    private int pendingBuilds;
 
     public WorldRenderer(World world) {
-        this.xChunks = world.width / World.CHUNK_SIZE;
+        this.world = world;
         this.yChunks = world.depth / World.CHUNK_SIZE;
-        this.zChunks = world.height / World.CHUNK_SIZE;
-        this.chunks = new Chunk[this.xChunks * this.yChunks * this.zChunks];
+    }
+
+    public int getChunkCount() {
+        return this.columns.size() * this.yChunks;
+    }
+
+    private Chunk getChunk(int chunkX, int chunkY, int chunkZ) {
+        if (chunkY < 0 || chunkY >= this.yChunks) return null;
+        Chunk[] column = this.columns.get(ChunkPos.asLong(chunkX, chunkZ));
+        return column != null ? column[chunkY] : null;
+    }
+
+    private void markDirty(Chunk chunk) {
+        chunk.dirty = true;
+        if (!chunk.queued) {
+            chunk.queued = true;
+            this.rebuildQueue.add(chunk);
+        }
+    }
+
+    @Override
+    public void onChunkModified(int chunkX, int chunkY, int chunkZ) {
+        Chunk chunk = this.getChunk(chunkX, chunkY, chunkZ);
+        if (chunk != null) {
+            this.markDirty(chunk);
+        }
+    }
 
-        for (int x = 0; x < this.xChunks; x++) {
-            for (int y = 0; y < this.yChunks; y++) {
-                for (int z = 0; z < this.zChunks; z++) {
-                    this.chunks[(x + y * this.xChunks) * this.zChunks + z] = new Chunk(world, x, y, z);
+    // Dirty chunks around a block the player changed are meshed on the render thread during the next update,
+    // as far as the frame budget allows, the rest go first to the mesher threads.
+    public void prioritize(int x, int y, int z) {
+        int chunkX = x >> World.CHUNK_SHIFT;
+        int chunkY = y >> World.CHUNK_SHIFT;
+        int chunkZ = z >> World.CHUNK_SHIFT;
+        for (int offsetY = -1; offsetY <= 1; ++offsetY) {
+            for (int offsetZ = -1; offsetZ <= 1; ++offsetZ) {
+                for (int offsetX = -1; offsetX <= 1; ++offsetX) {
+                    Chunk chunk = this.getChunk(chunkX + offsetX, chunkY + offsetY, chunkZ + offsetZ);
+                    if (chunk != null && chunk.dirty) {
+                        chunk.urgent = true;
+                    }
                 }
             }
         }
     }
 
-    public int getChunkCount() {
-        return this.chunks.length;
+    @Override
+    public void onColumnLoaded(int chunkX, int chunkZ) {
+        Chunk[] column = new Chunk[this.yChunks];
+        for (int y = 0; y < this.yChunks; ++y) {
+            column[y] = new Chunk(chunkX, y, chunkZ);
+            column[y].cacheable = true;
+            this.markDirty(column[y]);
+        }
+        this.columns.put(ChunkPos.asLong(chunkX, chunkZ), column);
+        this.markNeighboursDirty(chunkX, chunkZ);
     }
 
     @Override
-    public void onChunkModified(int chunkX, int chunkY, int chunkZ) {
-        if (chunkX < 0 || chunkY < 0 || chunkZ < 0 || chunkX >= this.xChunks || chunkY >= this.yChunks || chunkZ >= this.zChunks) return;
-        this.chunks[(chunkX + chunkY * this.xChunks) * this.zChunks + chunkZ].markDirty();
+    public void onColumnUnloaded(int chunkX, int chunkZ) {
+        Chunk[] column = this.columns.remove(ChunkPos.asLong(chunkX, chunkZ));
+        if (column != null) {
+            for (Chunk chunk : column) {
+                chunk.close();
+            }
+        }
+        this.markNeighboursDirty(chunkX, chunkZ);
+    }
+
+    private void markNeighboursDirty(int chunkX, int chunkZ) {
+        for (int y = 0; y < this.yChunks; ++y) {
+            this.markNeighbourDirty(chunkX - 1, y, chunkZ);
+            this.markNeighbourDirty(chunkX + 1, y, chunkZ);
+            this.markNeighbourDirty(chunkX, y, chunkZ - 1);
+            this.markNeighbourDirty(chunkX, y, chunkZ + 1);
+        }
+    }
+
+    private void markNeighbourDirty(int chunkX, int chunkY, int chunkZ) {
+        Chunk chunk = this.getChunk(chunkX, chunkY, chunkZ);
+        if (chunk != null) {
+            chunk.cacheable = true;
+            this.markDirty(chunk);
+        }
+    }
+
+    // Rebuilds caused by loading go through the mesh cache, rebuilds caused by edits delete the entry they make stale.
+    private boolean useCache(Chunk chunk) {
+        if (!chunk.cacheable) {
+            this.evictCacheEntry(chunk);
+            return false;
+        }
+        chunk.cacheable = false;
+        chunk.cached = true;
+        return true;
+    }
+
+    private void evictCacheEntry(Chunk chunk) {
+        chunk.cacheable = false;
+        if (chunk.cached) {
+            chunk.cached = false;
+            this.meshExecutor.execute(() -> this.meshCache.delete(chunk.x, chunk.y, chunk.z));
+        }
+    }
+
+    public void update(Frustum frustum, float cameraX, float cameraY, float cameraZ) {
+        long deadline = System.nanoTime() + FRAME_BUDGET_NANOS;
+        int uploadedBytes = this.scheduleRebuilds(frustum, cameraX, cameraY, cameraZ, deadline);
+        this.uploadMeshes(deadline, uploadedBytes);
+    }
+
+    // Returns the bytes uploaded by urgent builds, they count against the same frame budget as the finished meshes.
+    private int scheduleRebuilds(Frustum frustum, float cameraX, float cameraY, float cameraZ, long deadline) {
+        for (Iterator<Chunk> iterator = this.rebuildQueue.iterator(); iterator.hasNext(); ) {
+            Chunk chunk = iterator.next();
+            if (chunk.closed || !chunk.dirty) {
+                chunk.queued = false;
+                iterator.remove();
+                continue;
+            }
+
+            float dx = chunk.x * World.CHUNK_SIZE + World.CHUNK_SIZE / 2f - cameraX;
+            float dy = chunk.y * World.CHUNK_SIZE + World.CHUNK_SIZE / 2f - cameraY;
+            float dz = chunk.z * World.CHUNK_SIZE + World.CHUNK_SIZE / 2f - cameraZ;
+            chunk.distance = dx * dx + dy * dy + dz * dz;
+            chunk.visible = frustum.isVisible(chunk.box);
+        }
+        this.rebuildQueue.sort(REBUILD_ORDER);
+
+        int uploadedBytes = 0;
+        for (Iterator<Chunk> iterator = this.rebuildQueue.iterator(); iterator.hasNext(); ) {
+            Chunk chunk = iterator.next();
+            if (chunk.urgent && (uploadedBytes == 0 || (System.nanoTime() < deadline && uploadedBytes < UPLOAD_BUDGET_BYTES))) {
+                chunk.urgent = false;
+                chunk.dirty = false;
+                this.evictCacheEntry(chunk);
+                ChunkMesh mesh = this.buildMesh(chunk, ++chunk.generation, false);
+                this.uploadMesh(mesh);
+                uploadedBytes += mesh.size();
+                mesh.free();
+            } else if (this.pendingBuilds >= MAX_PENDING_BUILDS) {
+                break;
+            } else if (chunk.building) {
+                continue;
+            } else {
+                this.scheduleRebuild(chunk);
+            }
+            if (!chunk.dirty) {
+                chunk.queued = false;
+                iterator.remove();
+            }
+        }
+        return uploadedBytes;
     }
 
     public void render(Shader terrainShader, Frustum frustum, int layer) {
-        Chunk.rebuiltThisFrame = 0;
         chunksRendererPerFrame = currentChunksRendererPerFrame;
         currentChunksRendererPerFrame = 0;
 
-        for (Chunk chunk : this.chunks) {
-            if (chunk != null && frustum.isVisible(chunk.box)) {
-                terrainShader.setUniform("uMeshOffset", (float) (chunk.x * World.CHUNK_SIZE), (float) (chunk.y * World.CHUNK_SIZE), (float) (chunk.z * World.CHUNK_SIZE));
-                chunk.render(layer);
-                if (layer == 0) currentChunksRendererPerFrame++;
+        for (Chunk[] column : this.columns.values()) {
+            for (Chunk chunk : column) {
+                if (frustum.isVisible(chunk.box)) {
+                    if (chunk.vertexCounts[layer] > 0) {
+                        terrainShader.setUniform("uMeshOffset", (float) (chunk.x * World.CHUNK_SIZE), (float) (chunk.y * World.CHUNK_SIZE), (float) (chunk.z * World.CHUNK_SIZE));
+                        chunk.render(layer);
+                    }
+                    if (layer == 0) currentChunksRendererPerFrame++;
+                }
+            }
+        }
+    }
+
+    private void scheduleRebuild(Chunk chunk) {
+        chunk.urgent = false;
+        chunk.dirty = false;
+        chunk.building = true;
+        ++this.pendingBuilds;
+        int generation = ++chunk.generation;
+        boolean cached = this.useCache(chunk);
+        this.meshExecutor.execute(() -> this.uploads.add(this.buildMesh(chunk, generation, cached)));
+    }
+
+    // Usually runs on a mesher thread, only the published section views are read.
+    private ChunkMesh buildMesh(Chunk chunk, int generation, boolean cached) {
+        ChunkMesher mesher = MESHERS.get();
+        ByteBuffer[] buffers = new ByteBuffer[2];
+        int[] vertexCounts = new int[2];
+        try {
+            mesher.snapshot(new PublishedBlockView(this.world), chunk.x, chunk.y, chunk.z);
+        } catch (Exception e) {
+            return new ChunkMesh(chunk, generation, buffers, vertexCounts, e);
+        }
+        if (mesher.isEmpty()) {
+            return new ChunkMesh(chunk, generation, buffers, vertexCounts, null);
+        }
+        long hash = cached ? mesher.hash() : 0L;
+        if (cached && this.meshCache.read(chunk.x, chunk.y, chunk.z, hash, buffers, vertexCounts)) {
+            return new ChunkMesh(chunk, generation, buffers, vertexCounts, null);
+        }
+
+        BufferBuilder[] builders = new BufferBuilder[2];
+        for (int layer = 0; layer < 2; ++layer) {
+            builders[layer] = this.scratchBuilders.poll();
+            if (builders[layer] == null) {
+                builders[layer] = new BufferBuilder(MemoryUtil.memAlloc(INITIAL_MESH_BUFFER_SIZE));
+            }
+            builders[layer].begin();
+        }
+
+        try {
+            mesher.build(builders);
+            for (int layer = 0; layer < 2; ++layer) {
+                vertexCounts[layer] = builders[layer].end();
+                if (vertexCounts[layer] > 0) {
+                    int size = vertexCounts[layer] * VertexLayout.TERRAIN.stride;
+                    buffers[layer] = MemoryUtil.memAlloc(size);
+                    MemoryUtil.memCopy(builders[layer].getPointer(), MemoryUtil.memAddress(buffers[layer]), size);
+                }
+            }
+            if (cached) this.meshCache.write(chunk.x, chunk.y, chunk.z, hash, buffers, vertexCounts);
+            return new ChunkMesh(chunk, generation, buffers, vertexCounts, null);
+        } catch (Exception e) {
+            return new ChunkMesh(chunk, generation, buffers, vertexCounts, e);
+        } finally {
+            for (BufferBuilder builder : builders) {
+                this.scratchBuilders.add(builder);
+            }
+        }
+    }
+
+    // Always uploads at least one mesh so a busy frame cannot stall the queue.
+    private void uploadMeshes(long deadline, int uploadedBytes) {
+        boolean first = true;
+        ChunkMesh mesh;
+        while ((first || (System.nanoTime() < deadline && uploadedBytes < UPLOAD_BUDGET_BYTES)) && (mesh = this.uploads.poll()) != null) {
+            first = false;
+            --this.pendingBuilds;
+            mesh.chunk().building = false;
+            this.uploadMesh(mesh);
+            uploadedBytes += mesh.size();
+            mesh.free();
+        }
+    }
+
+    private void uploadMesh(ChunkMesh mesh) {
+        Chunk chunk = mesh.chunk();
+        if (chunk.closed || mesh.generation() < chunk.uploadedGeneration) return;
+        // A failed chunk is only built again once it or a neighbour changes, and is reported the first time it fails
+        if (mesh.failure() != null) {
+            if (!chunk.failed) {
+                chunk.failed = true;
+                LOGGER.error("Failed to build chunk {}, {}, {}", chunk.x, chunk.y, chunk.z, mesh.failure());
             }
+            return;
         }
+        chunk.failed = false;
+
+        chunk.uploadedGeneration = mesh.generation();
+        chunk.upload(mesh.buffers(), mesh.vertexCounts());
     }
 
     @Override
     public void close() {
-        for (Chunk chunk : this.chunks) {
-            if (chunk != null) {
+        for (Chunk[] column : this.columns.values()) {
+            for (Chunk chunk : column) {
                 chunk.close();
             }
         }
+        this.columns.clear();
+
+        this.meshExecutor.shutdown();
+        try {
+            this.meshExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ignored) {
+        }
+
+        ChunkMesh mesh;
+        while ((mesh = this.uploads.poll()) != null) {
+            mesh.free();
+        }
+
+        BufferBuilder builder;
+        while ((builder = this.scratchBuilders.poll()) != null) {
+            MemoryUtil.memFree(builder.getBuffer());
+        }
+    }
+
+    private record ChunkMesh(Chunk chunk, int generation, ByteBuffer[] buffers, int[] vertexCounts, Exception failure) {
+        int size() {
+            return Math.max(1, (this.vertexCounts[0] + this.vertexCounts[1]) * VertexLayout.TERRAIN.stride);
+        }
+
+        void free() {
+            for (ByteBuffer buffer : this.buffers) {
+                if (buffer != null) MemoryUtil.memFree(buffer);
+            }
+        }
     }
 
     public static class Chunk implements Closeable {
-        private static int rebuiltThisFrame;
-
-        private final World world;
         private final int x;
         private final int y;
         private final int z;
         private boolean dirty;
+        private boolean queued;
+        private boolean urgent;
+        private boolean building;
+        private boolean closed;
+        private boolean visible;
+        private boolean cacheable;
+        private boolean cached;
+        private boolean failed;
+        private float distance;
+        private int generation;
+        private int uploadedGeneration;
         private final VertexBuffer[] vertexBuffers;
+        private final int[] vertexCounts;
         public final Box box;
-        private ByteBuffer buffer;
 
-        public Chunk(World world, int x, int y, int z) {
-            this.world = world;
+        public Chunk(int x, int y, int z) {
             this.x = x;
             this.y = y;
             this.z = z;
             this.box = new Box(x * World.CHUNK_SIZE, y * World.CHUNK_SIZE, z * World.CHUNK_SIZE, (x + 1) * World.CHUNK_SIZE, (y + 1) * World.CHUNK_SIZE, (z + 1) * World.CHUNK_SIZE);
             this.vertexBuffers = new VertexBuffer[2];
-            this.markDirty();
-        }
-
-        public void markDirty() {
-            this.dirty = true;
+            this.vertexCounts = new int[2];
         }
 
-        private void rebuild(int layer) {
-            if (Chunk.rebuiltThisFrame == 2 * 5) return;
-            ++Chunk.rebuiltThisFrame;
-
-            if (this.vertexBuffers[layer] == null) {
-                this.vertexBuffers[layer] = new VertexBuffer();
-            }
-
-            if (this.buffer == null) {
-                this.buffer = MemoryUtil.memAlloc((((12 + 8 + 4) * 4) * 6) * (World.CHUNK_SIZE * World.CHUNK_SIZE * World.CHUNK_SIZE));
-            }
+        private void upload(ByteBuffer[] buffers, int[] vertexCounts) {
+            for (int layer = 0; layer < 2; ++layer) {
+                this.vertexCounts[layer] = vertexCounts[layer];
+                if (this.vertexCounts[layer] == 0) continue;
 
-            BufferBuilder builder = new BufferBuilder(MemoryUtil.memAddress(this.buffer));
-            MatrixStack matrices = new MatrixStack();
-            builder.begin();
-            for (int y = 0; y < World.CHUNK_SIZE; ++y) {
-                for (int z = 0; z < World.CHUNK_SIZE; ++z) {
-                    for (int x = 0; x < World.CHUNK_SIZE; ++x) {
-                        int blockX = this.x * World.CHUNK_SIZE + x;
-                        int blockY = this.y * World.CHUNK_SIZE + y;
-                        int blockZ = this.z * World.CHUNK_SIZE + z;
-
-                        Block block = this.world.getBlock(blockX, blockY, blockZ);
-                        if (block == Blocks.AIR) continue;
-
-                        matrices.push();
-                        matrices.translate(x, y, z);
-                        block.render(this.world, matrices, builder, blockX, blockY, blockZ, layer);
-                        matrices.pop();
-                    }
+                if (this.vertexBuffers[layer] == null) {
+                    this.vertexBuffers[layer] = new VertexBuffer();
                 }
+                this.vertexBuffers[layer].upload(DrawMode.QUADS, VertexLayout.TERRAIN, buffers[layer], this.vertexCounts[layer]);
             }
-
-            this.vertexBuffers[layer].upload(DrawMode.QUADS, VertexLayout.POS_UV_COLOR, MemoryUtil.memSlice(this.buffer, 0, builder.end() * (12 + 8 + 4)), builder.end());
-            this.dirty = false;
         }
 
         public void render(int layer) {
-            if (this.dirty) {
-                this.rebuild(0);
-                this.rebuild(1);
-            }
-
-            if (!this.dirty && this.vertexBuffers[layer].getIndexCount() > 0) {
-                this.vertexBuffers[layer].bind();
-                this.vertexBuffers[layer].draw();
-            }
+            this.vertexBuffers[layer].bind();
+            this.vertexBuffers[layer].draw();
         }
 
         @Override
         public void close() {
+            this.closed = true;
             for (VertexBuffer vertexBuffer : this.vertexBuffers) {
                 if (vertexBuffer != null) vertexBuffer.close();
             }
-
-            if (this.buffer != null) {
-                MemoryUtil.memFree(this.buffer);
-            }
         }
     }
 }
@@ -4,8 +4,12 @@ import me.kalmemarq.util.MathUtils;
 import org.joml.Matrix4f;
 import org.lwjgl.system.MemoryUtil;
 
+import java.nio.ByteBuffer;
+
 public class BufferBuilder {
-    private final long pointer;
+    private ByteBuffer buffer;
+    private long pointer;
+    private int capacity = Integer.MAX_VALUE;
     private int cursor;
     private int vertexCount;
 
@@ -13,6 +17,28 @@ public class BufferBuilder {
         this.pointer = pointer;
     }
 
+    // Owns the buffer and reallocates it when the terrain path runs out of room.
+    public BufferBuilder(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.pointer = MemoryUtil.memAddress(buffer);
+        this.capacity = buffer.capacity();
+    }
+
+    public ByteBuffer getBuffer() {
+        return this.buffer;
+    }
+
+    public long getPointer() {
+        return this.pointer;
+    }
+
+    private void grow(int bytes) {
+        int capacity = Math.max(this.capacity * 2, this.cursor + bytes);
+        this.buffer = MemoryUtil.memRealloc(this.buffer, capacity);
+        this.pointer = MemoryUtil.memAddress(this.buffer);
+        this.capacity = capacity;
+    }
+
     public void begin() {
         this.cursor = 0;
         this.vertexCount = 0;
@@ -34,6 +60,20 @@ public class BufferBuilder {
         return this;
     }
 
+    public static int packTerrainUV(int tile, int u, int v) {
+        return tile | u << 8 | v << 16;
+    }
+
+    // Writes a whole VertexLayout.TERRAIN vertex, LWJGL only runs on little-endian hosts.
+    public void terrainVertex(int position, int uv) {
+        if (this.cursor + 8 > this.capacity) this.grow(8);
+        long pointer = this.pointer + this.cursor;
+        MemoryUtil.memPutInt(pointer, position);
+        MemoryUtil.memPutInt(pointer + 4, uv);
+        this.cursor += 8;
+        this.vertexCount++;
+    }
+
     public BufferBuilder normal(float x, float y, float z) {
         MemoryUtil.memPutByte(this.pointer + this.cursor, (byte) (x * 127.0f));
         MemoryUtil.memPutByte(this.pointer + this.cursor + 1, (byte) (y * 127.0f));
@@ -0,0 +1,66 @@
+package me.kalmemarq.render.vertex;
+
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+
+// Quad i is drawn from vertices 4i..4i+3, so every quad mesh can share one index buffer.
+// Meshes that fit in 16 bit indices use the short copy, bigger ones the int copy, and both only ever grow.
+public class QuadIndexBuffer {
+    private static final int MAX_SHORT_QUADS = 65536 / 4;
+    private static final int MIN_QUADS = 1024;
+    private static final QuadIndexBuffer SHORT = new QuadIndexBuffer(GL30.GL_UNSIGNED_SHORT, 2, MAX_SHORT_QUADS);
+    private static final QuadIndexBuffer INT = new QuadIndexBuffer(GL30.GL_UNSIGNED_INT, 4, Integer.MAX_VALUE / 6);
+
+    public final int type;
+    public final int bytes;
+    private final int maxQuads;
+    private int id;
+    private int quadCapacity;
+
+    private QuadIndexBuffer(int type, int bytes, int maxQuads) {
+        this.type = type;
+        this.bytes = bytes;
+        this.maxQuads = maxQuads;
+    }
+
+    public static QuadIndexBuffer get(int vertexCount) {
+        return vertexCount / 4 <= MAX_SHORT_QUADS ? SHORT : INT;
+    }
+
+    // Binds to the current vertex array, regenerating the indices first if fewer quads are covered.
+    public void bind(int vertexCount) {
+        if (this.id == 0) {
+            this.id = GL30.glGenBuffers();
+        }
+        GL30.glBindBuffer(GL30.GL_ELEMENT_ARRAY_BUFFER, this.id);
+
+        int quads = vertexCount / 4;
+        if (quads <= this.quadCapacity) return;
+
+        int capacity = Math.min(Math.max(quads, Math.max(MIN_QUADS, this.quadCapacity * 2)), this.maxQuads);
+        ByteBuffer buffer = MemoryUtil.memAlloc(capacity * 6 * this.bytes);
+        for (int i = 0, j = 0; i < capacity; ++i, j += 4) {
+            if (this.bytes == 2) {
+                buffer.putShort((short) j).putShort((short) (j + 1)).putShort((short) (j + 2)).putShort((short) (j + 2)).putShort((short) (j + 3)).putShort((short) j);
+            } else {
+                buffer.putInt(j).putInt(j + 1).putInt(j + 2).putInt(j + 2).putInt(j + 3).putInt(j);
+            }
+        }
+        buffer.flip();
+        GL30.glBufferData(GL30.GL_ELEMENT_ARRAY_BUFFER, buffer, GL30.GL_STATIC_DRAW);
+        MemoryUtil.memFree(buffer);
+        this.quadCapacity = capacity;
+    }
+
+    public static void cleanup() {
+        for (QuadIndexBuffer indexBuffer : new QuadIndexBuffer[]{SHORT, INT}) {
+            if (indexBuffer.id != 0) {
+                GL30.glDeleteBuffers(indexBuffer.id);
+                indexBuffer.id = 0;
+                indexBuffer.quadCapacity = 0;
+            }
+        }
+    }
+}
@@ -2,27 +2,23 @@ package me.kalmemarq.render.vertex;
 
 import me.kalmemarq.render.DrawMode;
 import org.lwjgl.opengl.GL30;
-import org.lwjgl.system.MemoryUtil;
 
 import java.io.Closeable;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 
 public class VertexBuffer implements Closeable {
     private final int vao;
     private final int vbo;
-    private final int ibo;
     private DrawMode mode;
     private int arrayBufferCapacity;
-    private int capacityIndexCount;
     private int indexCount;
+    private int indexType;
+    private int indexBytes;
     private VertexLayout layout;
-    private IntBuffer indexBuffer;
 
     public  VertexBuffer() {
         this.vao = GL30.glGenVertexArrays();
         this.vbo = GL30.glGenBuffers();
-        this.ibo = GL30.glGenBuffers();
     }
 
     public void upload(DrawMode mode, VertexLayout layout, ByteBuffer buffer, int vertexCount) {
@@ -31,8 +27,14 @@ public class VertexBuffer implements Closeable {
         GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, this.vbo);
         this.uploadVertexBuffer(layout, buffer, vertexCount);
 
-        GL30.glBindBuffer(GL30.GL_ELEMENT_ARRAY_BUFFER, this.ibo);
-        this.uploadIndexBuffer(mode, vertexCount);
+        if (mode == DrawMode.QUADS) {
+            QuadIndexBuffer indexBuffer = QuadIndexBuffer.get(vertexCount);
+            indexBuffer.bind(vertexCount);
+            this.indexType = indexBuffer.type;
+            this.indexBytes = indexBuffer.bytes;
+        }
+        this.mode = mode;
+        this.indexCount = mode.getIndexCount(vertexCount);
     }
 
     private void uploadVertexBuffer(VertexLayout layout, ByteBuffer buffer, int vertexCount) {
@@ -54,38 +56,6 @@ public class VertexBuffer implements Closeable {
         }
     }
 
-    private void uploadIndexBuffer(DrawMode mode, int vertexCount) {
-        int indexCount = mode.getIndexCount(vertexCount);
-        if (this.mode != mode || indexCount > this.capacityIndexCount) {
-            if (this.indexBuffer == null) {
-                this.indexBuffer = MemoryUtil.memAllocInt(indexCount);
-            } else if (indexCount > this.capacityIndexCount) {
-                this.indexBuffer = MemoryUtil.memRealloc(this.indexBuffer, indexCount);
-            }
-            this.indexBuffer.position(0);
-
-            if (mode == DrawMode.QUADS) {
-                for (int i = 0, j = 0; i < indexCount; i += 6, j += 4) {
-                    this.indexBuffer.put(j).put(j + 1).put(j + 2).put(j + 2).put(j + 3).put(j);
-                }
-            } else {
-                for (int i = 0; i < indexCount; ++i) {
-                    this.indexBuffer.put(i);
-                }
-            }
-            this.indexBuffer.flip();
-            if (indexCount > this.capacityIndexCount) {
-                GL30.glBufferData(GL30.GL_ELEMENT_ARRAY_BUFFER, this.indexBuffer, GL30.GL_DYNAMIC_DRAW);
-                this.capacityIndexCount = indexCount;
-            } else {
-                GL30.glBufferSubData(GL30.GL_ELEMENT_ARRAY_BUFFER, 0, this.indexBuffer);
-            }
-        }
-
-        this.mode = mode;
-        this.indexCount = indexCount;
-    }
-
     public int getIndexCount() {
         return this.indexCount;
     }
@@ -98,17 +68,18 @@ public class VertexBuffer implements Closeable {
         this.draw(this.indexCount, 0);
     }
 
-    public void draw(int indexCount, int offset) {
-        GL30.glDrawElements(this.mode.glEnum, indexCount, GL30.GL_UNSIGNED_INT, offset);
+    // Quads go through the shared quad index buffer, the other modes are drawn straight from the vertices.
+    public void draw(int indexCount, int firstIndex) {
+        if (this.mode == DrawMode.QUADS) {
+            GL30.glDrawElements(this.mode.glEnum, indexCount, this.indexType, (long) firstIndex * this.indexBytes);
+        } else {
+            GL30.glDrawArrays(this.mode.glEnum, firstIndex, indexCount);
+        }
     }
 
     @Override
     public void close() {
         GL30.glDeleteVertexArrays(this.vao);
         GL30.glDeleteBuffers(this.vbo);
-        GL30.glDeleteBuffers(this.ibo);
-        if (this.indexBuffer != null) {
-            MemoryUtil.memFree(this.indexBuffer);
-        }
     }
 }
@@ -7,6 +7,7 @@ public class VertexLayout {
     public static final VertexLayout POS_UV = new VertexLayout(Attribute.POSITION, Attribute.UV);
     public static final VertexLayout POS_UV_COLOR = new VertexLayout(Attribute.POSITION, Attribute.UV, Attribute.COLOR);
     public static final VertexLayout POS_COLOR = new VertexLayout(Attribute.POSITION, Attribute.COLOR);
+    public static final VertexLayout TERRAIN = new VertexLayout(Attribute.PACKED_POSITION, Attribute.PACKED_UV);
 
     private final Attribute[] attributes;
     private final int[] offsets;
@@ -41,7 +42,11 @@ public class VertexLayout {
         POSITION(3, GL30.GL_FLOAT, 12, false),
         UV(2, GL30.GL_FLOAT, 8, false),
         COLOR(4, GL30.GL_UNSIGNED_BYTE, 4, true),
-        NORMAL(3, GL30.GL_BYTE, 3, false);
+        NORMAL(3, GL30.GL_BYTE, 3, false),
+        // Chunk-local x, y, z and the light byte
+        PACKED_POSITION(4, GL30.GL_UNSIGNED_BYTE, 4, false),
+        // Atlas tile index and the u, v distance across the quad in blocks
+        PACKED_UV(4, GL30.GL_UNSIGNED_BYTE, 4, false);
 
         public final int size;
         public final int glType;
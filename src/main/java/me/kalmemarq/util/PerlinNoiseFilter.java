@@ -3,64 +3,69 @@ package me.kalmemarq.util;
 import java.util.Random;
 
 public class PerlinNoiseFilter {
-    public int[] read(int width, int height, int levels) {
-        Random random = new Random();
+    public int[] read(long seed, int width, int height, int levels) {
+        return this.read(new Random(seed), width, height, levels);
+    }
+
+    // Width and height must be powers of two, every neighbour lookup wraps with a mask.
+    public int[] read(Random random, int width, int height, int levels) {
+        if (Integer.bitCount(width) != 1 || Integer.bitCount(height) != 1) {
+            throw new IllegalArgumentException("Noise size must be a power of two: " + width + "x" + height);
+        }
+
         int[] tmp = new int[width * height];
         int fuzz = 16;
-        int step = width >> levels;
+        int widthMask = width - 1;
+        int heightMask = height - 1;
 
-        int val;
-        int ss;
-        for(val = 0; val < height; val += step) {
-            for(ss = 0; ss < width; ss += step) {
-                tmp[ss + val * width] = (random.nextInt(256) - 128) * fuzz;
+        for (int y = 0; y < height; y += width >> levels) {
+            for (int x = 0; x < width; x += width >> levels) {
+                tmp[x + y * width] = (random.nextInt(256) - 128) * fuzz;
             }
         }
 
-        for(step = width >> levels; step > 1; step /= 2) {
-            val = 256 * (step << levels);
-            ss = step / 2;
+        for (int step = width >> levels; step > 1; step /= 2) {
+            int val = 256 * (step << levels);
+            int ss = step / 2;
 
-            int y;
-            int x;
-            int c;
-            int r;
-            int d;
-            int mu;
-            int ml;
-            for(y = 0; y < height; y += step) {
-                for(x = 0; x < width; x += step) {
-                    c = tmp[(x) % width + (y) % height * width];
-                    r = tmp[(x + step) % width + (y) % height * width];
-                    d = tmp[(x) % width + (y + step) % height * width];
-                    mu = tmp[(x + step) % width + (y + step) % height * width];
-                    ml = (c + d + r + mu) / 4 + random.nextInt(val * 2) - val;
-                    tmp[x + ss + (y + ss) * width] = ml;
+            for (int y = 0; y < height; y += step) {
+                int row = (y & heightMask) * width;
+                int nextRow = (y + step & heightMask) * width;
+                int midRow = (y + ss) * width;
+                for (int x = 0; x < width; x += step) {
+                    int nextX = x + step & widthMask;
+                    int c = tmp[x + row];
+                    int r = tmp[nextX + row];
+                    int d = tmp[x + nextRow];
+                    int mu = tmp[nextX + nextRow];
+                    tmp[x + ss + midRow] = (c + d + r + mu) / 4 + random.nextInt(val * 2) - val;
                 }
             }
 
-            for(y = 0; y < height; y += step) {
-                for(x = 0; x < width; x += step) {
-                    c = tmp[x + y * width];
-                    r = tmp[(x + step) % width + y * width];
-                    d = tmp[x + (y + step) % width * width];
-                    mu = tmp[(x + ss & width - 1) + (y + ss - step & height - 1) * width];
-                    ml = tmp[(x + ss - step & width - 1) + (y + ss & height - 1) * width];
-                    int m = tmp[(x + ss) % width + (y + ss) % height * width];
+            for (int y = 0; y < height; y += step) {
+                int row = y * width;
+                // The original sampled the row below with the width as modulus, kept for identical output.
+                int nextRow = (y + step & widthMask) * width;
+                int midRow = (y + ss & heightMask) * width;
+                int prevMidRow = (y + ss - step & heightMask) * width;
+                for (int x = 0; x < width; x += step) {
+                    int c = tmp[x + row];
+                    int r = tmp[(x + step & widthMask) + row];
+                    int d = tmp[x + nextRow];
+                    int mu = tmp[(x + ss & widthMask) + prevMidRow];
+                    int ml = tmp[(x + ss - step & widthMask) + midRow];
+                    int m = tmp[(x + ss & widthMask) + midRow];
                     int u = (c + r + m + mu) / 4 + random.nextInt(val * 2) - val;
                     int l = (c + d + m + ml) / 4 + random.nextInt(val * 2) - val;
-                    tmp[x + ss + y * width] = u;
-                    tmp[x + (y + ss) * width] = l;
+                    tmp[x + ss + row] = u;
+                    tmp[x + midRow] = l;
                 }
             }
         }
 
         int[] result = new int[width * height];
-
-        for(val = 0; val < height; ++val) {
-            for(ss = 0; ss < width; ++ss) {
-                result[ss + val * width] = tmp[ss % width + val % height * width] / 512 + 128;
-            }
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = tmp[i] / 512 + 128;
         }
 
         return result;
@@ -0,0 +1,110 @@
+package me.kalmemarq.world;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+
+public class BlockChangeLog implements Closeable {
+    private static final Logger LOGGER = LogManager.getLogger("World");
+    private static final int RECORD_SIZE = 16;
+    private static final int BUFFER_SIZE = RECORD_SIZE * 4096;
+
+    private final FileChannel channel;
+    private final Executor executor;
+    private final Runnable writeFailed;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    // writeFailed runs on the executor whenever records could not be written.
+    public BlockChangeLog(Path path, Executor executor, Runnable writeFailed) throws IOException {
+        Files.createDirectories(path.getParent());
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.channel.position(this.channel.size() - this.channel.size() % RECORD_SIZE);
+        this.executor = executor;
+        this.writeFailed = writeFailed;
+    }
+
+    public void replay(Visitor visitor) throws IOException {
+        ByteBuffer records = ByteBuffer.allocate((int) (this.channel.size() - this.channel.size() % RECORD_SIZE));
+        while (records.hasRemaining()) {
+            if (this.channel.read(records, records.position()) < 0) break;
+        }
+        records.flip();
+
+        while (records.remaining() >= RECORD_SIZE) {
+            int x = records.getInt();
+            int z = records.getInt();
+            int y = records.getShort();
+            int oldId = records.get() & 0xFF;
+            int newId = records.get() & 0xFF;
+            int time = records.getInt();
+            visitor.visit(x, y, z, oldId, newId, time);
+        }
+    }
+
+    public void append(int x, int y, int z, int oldId, int newId, int time) {
+        this.buffer.putInt(x).putInt(z).putShort((short) y).put((byte) oldId).put((byte) newId).putInt(time);
+        if (!this.buffer.hasRemaining()) {
+            this.flush();
+        }
+    }
+
+    // Appends every position of a run along x whose id changed, the run must be shorter than the buffer.
+    public void appendRow(int x, int y, int z, int[] oldIds, int[] newIds, int offset, int length, int time) {
+        if (this.buffer.remaining() < length * RECORD_SIZE) {
+            this.flush();
+        }
+        for (int i = 0; i < length; ++i) {
+            int oldId = oldIds[offset + i];
+            int newId = newIds[offset + i];
+            if (oldId != newId) {
+                this.buffer.putInt(x + i).putInt(z).putShort((short) y).put((byte) oldId).put((byte) newId).putInt(time);
+            }
+        }
+    }
+
+    public void flush() {
+        if (this.buffer.position() == 0) return;
+
+        ByteBuffer records = this.buffer.flip();
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.executor.execute(() -> {
+            try {
+                while (records.hasRemaining()) {
+                    this.channel.write(records);
+                }
+                this.channel.force(false);
+            } catch (IOException e) {
+                LOGGER.error("Failed to write block changes, they are only safe once the world is saved", e);
+                this.writeFailed.run();
+                try {
+                    // Drop a partly written record so later records stay aligned
+                    this.channel.position(this.channel.size() - this.channel.size() % RECORD_SIZE);
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    public void truncate() throws IOException {
+        this.channel.truncate(0);
+        this.channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    @FunctionalInterface
+    public interface Visitor {
+        void visit(int x, int y, int z, int oldId, int newId, int time);
+    }
+}
@@ -0,0 +1,25 @@
+package me.kalmemarq.world;
+
+public final class BlockPos {
+    private static final int XZ_BITS = 26;
+    private static final int Y_BITS = 12;
+
+    private BlockPos() {
+    }
+
+    public static long asLong(int x, int y, int z) {
+        return ((long) x << (XZ_BITS + Y_BITS)) | (((long) z & ((1L << XZ_BITS) - 1)) << Y_BITS) | (y & ((1L << Y_BITS) - 1));
+    }
+
+    public static int getX(long pos) {
+        return (int) (pos >> (XZ_BITS + Y_BITS));
+    }
+
+    public static int getY(long pos) {
+        return (int) (pos & ((1L << Y_BITS) - 1));
+    }
+
+    public static int getZ(long pos) {
+        return (int) (pos << (64 - XZ_BITS - Y_BITS) >> (64 - XZ_BITS));
+    }
+}
@@ -0,0 +1,37 @@
+package me.kalmemarq.world;
+
+public class BlockRegion {
+    public final int width;
+    public final int height;
+    public final int length;
+    private final byte[] blocks;
+
+    public BlockRegion(int width, int height, int length) {
+        this.width = width;
+        this.height = height;
+        this.length = length;
+        this.blocks = new byte[width * height * length];
+    }
+
+    public int get(int x, int y, int z) {
+        return this.blocks[(y * this.length + z) * this.width + x] & 0xFF;
+    }
+
+    public void set(int x, int y, int z, int id) {
+        this.blocks[(y * this.length + z) * this.width + x] = (byte) id;
+    }
+
+    public void getRow(int x, int y, int z, int length, int[] out, int offset) {
+        int index = (y * this.length + z) * this.width + x;
+        for (int i = 0; i < length; ++i) {
+            out[offset + i] = this.blocks[index + i] & 0xFF;
+        }
+    }
+
+    public void setRow(int x, int y, int z, int length, int[] ids, int offset) {
+        int index = (y * this.length + z) * this.width + x;
+        for (int i = 0; i < length; ++i) {
+            this.blocks[index + i] = (byte) ids[offset + i];
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package me.kalmemarq.world;
+
+import me.kalmemarq.block.Block;
+import me.kalmemarq.block.Blocks;
+
+public interface BlockView {
+    int getBlockId(int x, int y, int z);
+
+    float getBrigthness(int x, int y, int z);
+
+    // Copies a box of ids into out with x varying fastest, then z, then y, the same order as ChunkSection.
+    default void getBlockIds(int x, int y, int z, int sizeX, int sizeY, int sizeZ, int[] out) {
+        int i = 0;
+        for (int blockY = y; blockY < y + sizeY; ++blockY) {
+            for (int blockZ = z; blockZ < z + sizeZ; ++blockZ) {
+                for (int blockX = x; blockX < x + sizeX; ++blockX) {
+                    out[i++] = this.getBlockId(blockX, blockY, blockZ);
+                }
+            }
+        }
+    }
+
+    // Same layout as getBlockIds.
+    default void getBrigthness(int x, int y, int z, int sizeX, int sizeY, int sizeZ, float[] out) {
+        int i = 0;
+        for (int blockY = y; blockY < y + sizeY; ++blockY) {
+            for (int blockZ = z; blockZ < z + sizeZ; ++blockZ) {
+                for (int blockX = x; blockX < x + sizeX; ++blockX) {
+                    out[i++] = this.getBrigthness(blockX, blockY, blockZ);
+                }
+            }
+        }
+    }
+
+    default Block getBlock(int x, int y, int z) {
+        return Blocks.blocks[this.getBlockId(x, y, z)];
+    }
+}
@@ -0,0 +1,292 @@
+package me.kalmemarq.world;
+
+import me.kalmemarq.World;
+import me.kalmemarq.block.Blocks;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+public class ChunkColumn {
+    public static final int SIZE = World.CHUNK_SIZE;
+    public static final int SKY_LIGHT = 0;
+    public static final int BLOCK_LIGHT = 1;
+
+    public final int x;
+    public final int z;
+    public final int depth;
+    private final ChunkSection[] sections;
+    private final short[] heightmap;
+    private final int[] tickableCounts;
+    private final NibbleArray[][] light;
+    private volatile SectionView[] views;
+    private boolean modified;
+
+    public ChunkColumn(int x, int z, int depth) {
+        this(x, z, depth, new ChunkSection[depth / SIZE]);
+
+        for (int i = 0; i < this.sections.length; ++i) {
+            this.sections[i] = new ChunkSection();
+        }
+    }
+
+    private ChunkColumn(int x, int z, int depth, ChunkSection[] sections) {
+        this.x = x;
+        this.z = z;
+        this.depth = depth;
+        this.sections = sections;
+        this.heightmap = new short[SIZE * SIZE];
+        this.tickableCounts = new int[sections.length];
+        this.light = new NibbleArray[2][sections.length];
+        for (int i = 0; i < sections.length; ++i) {
+            this.light[SKY_LIGHT][i] = new NibbleArray(0);
+            this.light[BLOCK_LIGHT][i] = new NibbleArray(0);
+        }
+    }
+
+    public ChunkColumn snapshot() {
+        ChunkSection[] sections = new ChunkSection[this.sections.length];
+        for (int i = 0; i < sections.length; ++i) {
+            sections[i] = this.sections[i].snapshot();
+        }
+        ChunkColumn copy = new ChunkColumn(this.x, this.z, this.depth, sections);
+        copy.copyDerivedFrom(this);
+        return copy;
+    }
+
+    public void copyFrom(ChunkColumn other) {
+        for (int i = 0; i < this.sections.length; ++i) {
+            this.sections[i] = other.sections[i].snapshot();
+        }
+        this.copyDerivedFrom(other);
+    }
+
+    private void copyDerivedFrom(ChunkColumn other) {
+        System.arraycopy(other.heightmap, 0, this.heightmap, 0, this.heightmap.length);
+        System.arraycopy(other.tickableCounts, 0, this.tickableCounts, 0, this.tickableCounts.length);
+    }
+
+    public void calculateDerivedData() {
+        this.calculateHeightMap();
+        this.calculateTickableCounts();
+    }
+
+    public long getPos() {
+        return ChunkPos.asLong(this.x, this.z);
+    }
+
+    public ChunkSection getSection(int index) {
+        return this.sections[index];
+    }
+
+    // Only the thread that owns the world may publish, views can then be read from any thread.
+    public void publish() {
+        SectionView[] views = this.views;
+        SectionView[] published = null;
+        for (int i = 0; i < this.sections.length; ++i) {
+            NibbleArray skyLight = this.light[SKY_LIGHT][i];
+            NibbleArray blockLight = this.light[BLOCK_LIGHT][i];
+            if (views != null && views[i].isCurrent(this.sections[i], skyLight, blockLight)) continue;
+            if (published == null) {
+                published = views != null ? views.clone() : new SectionView[this.sections.length];
+            }
+            published[i] = new SectionView(this.sections[i].snapshot(), skyLight.snapshot(), blockLight.snapshot());
+        }
+        if (published != null) {
+            this.views = published;
+        }
+    }
+
+    public SectionView getView(int section) {
+        SectionView[] views = this.views;
+        return views != null ? views[section] : null;
+    }
+
+    public int getSectionCount() {
+        return this.sections.length;
+    }
+
+    public int get(int x, int y, int z) {
+        return this.sections[y / SIZE].get(x, y % SIZE, z);
+    }
+
+    public void set(int x, int y, int z, int id) {
+        this.sections[y / SIZE].set(x, y % SIZE, z, id);
+    }
+
+    public int getHeight(int x, int z) {
+        return this.heightmap[z * SIZE + x];
+    }
+
+    private void calculateHeightMap() {
+        for (int z = 0; z < SIZE; ++z) {
+            for (int x = 0; x < SIZE; ++x) {
+                this.calculateHeightMap(x, z);
+            }
+        }
+    }
+
+    public void calculateHeightMap(int x, int z) {
+        this.heightmap[z * SIZE + x] = (short) this.findHeight(x, this.depth - 1, z);
+    }
+
+    public void updateHeightMap(int x, int y, int z, int id) {
+        int index = z * SIZE + x;
+        if (id != 0) {
+            if (y > this.heightmap[index]) {
+                this.heightmap[index] = (short) y;
+            }
+        } else if (y == this.heightmap[index]) {
+            this.heightmap[index] = (short) this.findHeight(x, y - 1, z);
+        }
+    }
+
+    // Called after the blocks from minY to maxY at (x, z) were edited, top is the highest solid one among them or -1.
+    public void updateHeightMap(int x, int z, int minY, int maxY, int top) {
+        int index = z * SIZE + x;
+        int height = this.heightmap[index];
+        if (height > maxY) return;
+        if (top >= 0) {
+            this.heightmap[index] = (short) top;
+        } else if (height >= minY) {
+            this.heightmap[index] = (short) this.findHeight(x, minY - 1, z);
+        }
+    }
+
+    private int findHeight(int x, int y, int z) {
+        while (y >= 0) {
+            ChunkSection section = this.sections[y / SIZE];
+            if (section.isUniform()) {
+                if (section.get(0) != 0) return y;
+                y = y / SIZE * SIZE - 1;
+            } else if (section.get(x, y % SIZE, z) != 0) {
+                return y;
+            } else {
+                --y;
+            }
+        }
+        return -1;
+    }
+
+    public int getLight(int channel, int x, int y, int z) {
+        return this.light[channel][y / SIZE].get(ChunkSection.index(x, y % SIZE, z));
+    }
+
+    public void setLight(int channel, int x, int y, int z, int level) {
+        this.light[channel][y / SIZE].set(ChunkSection.index(x, y % SIZE, z), level);
+    }
+
+    // Everything above the heightmap sees the sky, the LightEngine spreads it below from there.
+    public void initializeSkyLight() {
+        int minHeight = this.depth;
+        int maxHeight = -1;
+        for (short height : this.heightmap) {
+            minHeight = Math.min(minHeight, height);
+            maxHeight = Math.max(maxHeight, height);
+        }
+
+        for (int i = 0; i < this.sections.length; ++i) {
+            NibbleArray skyLight = this.light[SKY_LIGHT][i];
+            int base = i * SIZE;
+            if (base > maxHeight) {
+                skyLight.fill(LightEngine.MAX_LIGHT);
+                continue;
+            }
+
+            skyLight.fill(0);
+            if (base + SIZE - 1 <= minHeight) continue;
+
+            for (int z = 0; z < SIZE; ++z) {
+                for (int x = 0; x < SIZE; ++x) {
+                    for (int y = Math.max(this.heightmap[z * SIZE + x] + 1, base); y < base + SIZE; ++y) {
+                        skyLight.set(ChunkSection.index(x, y - base, z), LightEngine.MAX_LIGHT);
+                    }
+                }
+            }
+        }
+    }
+
+    public int getTickableCount(int section) {
+        return this.tickableCounts[section];
+    }
+
+    private void calculateTickableCounts() {
+        for (int i = 0; i < this.sections.length; ++i) {
+            this.tickableCounts[i] = this.sections[i].count(id -> Blocks.blocks[id].isTickable());
+        }
+    }
+
+    public void updateTickableCount(int y, int oldId, int newId) {
+        if (Blocks.blocks[oldId].isTickable()) --this.tickableCounts[y / SIZE];
+        if (Blocks.blocks[newId].isTickable()) ++this.tickableCounts[y / SIZE];
+    }
+
+    public void compact() {
+        for (ChunkSection section : this.sections) {
+            section.compact();
+        }
+    }
+
+    // The heightmap and tickable counts are stored after the sections so loading never has to scan them.
+    public void write(DataOutput output) throws IOException {
+        output.writeByte(this.sections.length);
+        for (ChunkSection section : this.sections) {
+            section.write(output);
+        }
+        for (short height : this.heightmap) {
+            output.writeShort(height);
+        }
+        for (int count : this.tickableCounts) {
+            output.writeInt(count);
+        }
+    }
+
+    private void checkSectionCount(int count) throws IOException {
+        if (count != this.sections.length) {
+            throw new IOException("Column " + this.x + "," + this.z + " has " + count + " sections, expected " + this.sections.length);
+        }
+    }
+
+    public void read(DataInput input) throws IOException {
+        this.checkSectionCount(input.readUnsignedByte());
+        for (ChunkSection section : this.sections) {
+            section.read(input);
+        }
+
+        for (int i = 0; i < this.heightmap.length; ++i) {
+            this.heightmap[i] = input.readShort();
+        }
+        for (int i = 0; i < this.tickableCounts.length; ++i) {
+            this.tickableCounts[i] = input.readInt();
+        }
+    }
+
+    public void read(ByteBuffer input) throws IOException {
+        try {
+            this.checkSectionCount(input.get() & 0xFF);
+            for (ChunkSection section : this.sections) {
+                section.read(input);
+            }
+
+            for (int i = 0; i < this.heightmap.length; ++i) {
+                this.heightmap[i] = input.getShort();
+            }
+            for (int i = 0; i < this.tickableCounts.length; ++i) {
+                this.tickableCounts[i] = input.getInt();
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new EOFException("Column " + this.x + "," + this.z + " is truncated");
+        }
+    }
+
+    public boolean isModified() {
+        return this.modified;
+    }
+
+    public void setModified(boolean modified) {
+        this.modified = modified;
+    }
+}
@@ -0,0 +1,18 @@
+package me.kalmemarq.world;
+
+public final class ChunkPos {
+    private ChunkPos() {
+    }
+
+    public static long asLong(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    public static int getX(long pos) {
+        return (int) (pos >> 32);
+    }
+
+    public static int getZ(long pos) {
+        return (int) pos;
+    }
+}
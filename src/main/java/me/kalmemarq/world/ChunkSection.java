@@ -0,0 +1,381 @@
+package me.kalmemarq.world;
+
+import me.kalmemarq.World;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+public class ChunkSection {
+    public static final int SIZE = World.CHUNK_SIZE;
+    public static final int VOLUME = SIZE * SIZE * SIZE;
+    private static final int MAX_ID = 256;
+
+    private int[] palette;
+    private int paletteSize;
+    private short[] paletteLookup;
+    private int bits;
+    private long[] data;
+    private ByteBuffer source;
+    private boolean shared;
+    private int version;
+
+    public ChunkSection() {
+        this(0);
+    }
+
+    public ChunkSection(int id) {
+        this.palette = new int[]{id};
+        this.paletteSize = 1;
+    }
+
+    public static int index(int x, int y, int z) {
+        return (y * SIZE + z) * SIZE + x;
+    }
+
+    public ChunkSection snapshot() {
+        ChunkSection copy = new ChunkSection();
+        copy.palette = this.palette;
+        copy.paletteSize = this.paletteSize;
+        copy.paletteLookup = this.paletteLookup;
+        copy.bits = this.bits;
+        copy.data = this.data;
+        copy.source = this.source;
+        copy.version = this.version;
+        copy.shared = true;
+        this.shared = true;
+        return copy;
+    }
+
+    private void unshare() {
+        if (!this.shared) return;
+        this.palette = this.palette.clone();
+        if (this.paletteLookup != null) this.paletteLookup = this.paletteLookup.clone();
+        if (this.data != null) this.data = this.data.clone();
+        this.shared = false;
+    }
+
+    // Only edits copy a mapped section to the heap, reads decode straight from the mapping.
+    private long[] data() {
+        long[] data = this.data;
+        if (data == null) {
+            data = new long[VOLUME * this.bits / 64];
+            this.source.asLongBuffer().get(0, data);
+            this.data = data;
+            this.source = null;
+        }
+        return data;
+    }
+
+    private long word(int index) {
+        long[] data = this.data;
+        return data != null ? data[index] : this.source.getLong(index << 3);
+    }
+
+    public int getVersion() {
+        return this.version;
+    }
+
+    public boolean isUniform() {
+        return this.bits == 0;
+    }
+
+    public int get(int x, int y, int z) {
+        return this.get(index(x, y, z));
+    }
+
+    public int get(int index) {
+        if (this.bits == 0) return this.palette[0];
+        return this.palette[this.getPaletteIndex(index)];
+    }
+
+    // Copies length ids going along x from (x, y, z) into out, the run must stay inside the section.
+    public void getRow(int x, int y, int z, int length, int[] out, int offset) {
+        if (this.bits == 0) {
+            Arrays.fill(out, offset, offset + length, this.palette[0]);
+            return;
+        }
+
+        long[] data = this.data;
+        ByteBuffer source = this.source;
+        int[] palette = this.palette;
+        int bits = this.bits;
+        int mask = (1 << bits) - 1;
+        int bitIndex = index(x, y, z) * bits;
+        for (int i = 0; i < length; ++i, bitIndex += bits) {
+            long word = data != null ? data[bitIndex >>> 6] : source.getLong(bitIndex >>> 6 << 3);
+            out[offset + i] = palette[(int) (word >>> (bitIndex & 63)) & mask];
+        }
+    }
+
+    public int count(IntPredicate predicate) {
+        if (this.bits == 0) return predicate.test(this.palette[0]) ? VOLUME : 0;
+
+        boolean[] matches = new boolean[this.paletteSize];
+        boolean any = false;
+        for (int i = 0; i < this.paletteSize; ++i) {
+            matches[i] = predicate.test(this.palette[i]);
+            any |= matches[i];
+        }
+        if (!any) return 0;
+
+        int count = 0;
+        for (int i = 0; i < VOLUME; ++i) {
+            if (matches[this.getPaletteIndex(i)]) ++count;
+        }
+        return count;
+    }
+
+    public void set(int x, int y, int z, int id) {
+        this.set(index(x, y, z), id);
+    }
+
+    public void set(int index, int id) {
+        if (this.bits == 0 && this.palette[0] == id) return;
+        this.unshare();
+        ++this.version;
+        if (this.bits == 0) {
+            this.resize(1);
+        }
+
+        this.setPaletteIndex(index, this.getOrAddPaletteIndex(id));
+    }
+
+    // Writes length ids going along x from (x, y, z), the run must stay inside the section.
+    public void setRow(int x, int y, int z, int length, int[] ids, int offset) {
+        if (this.bits == 0) {
+            int i = 0;
+            while (i < length && ids[offset + i] == this.palette[0]) ++i;
+            if (i == length) return;
+        }
+        this.unshare();
+        ++this.version;
+        if (this.bits == 0) {
+            this.resize(1);
+        }
+
+        // Palette entries are added first, a resize keeps the indices already handed out
+        int last = -1;
+        for (int i = 0; i < length; ++i) {
+            if (ids[offset + i] != last) {
+                last = ids[offset + i];
+                this.getOrAddPaletteIndex(last);
+            }
+        }
+
+        long[] data = this.data();
+        short[] paletteLookup = this.paletteLookup;
+        int bits = this.bits;
+        long mask = (1L << bits) - 1L;
+        int bitIndex = index(x, y, z) * bits;
+        for (int i = 0; i < length; ++i, bitIndex += bits) {
+            int shift = bitIndex & 63;
+            data[bitIndex >>> 6] = (data[bitIndex >>> 6] & ~(mask << shift)) | ((long) (paletteLookup[ids[offset + i]] - 1) << shift);
+        }
+    }
+
+    // Replaces every block of the section with id.
+    public void fill(int id) {
+        if (this.bits == 0 && this.palette[0] == id) return;
+        this.palette = new int[]{id};
+        this.paletteSize = 1;
+        this.paletteLookup = null;
+        this.bits = 0;
+        this.data = null;
+        this.source = null;
+        this.shared = false;
+        ++this.version;
+    }
+
+    private int getOrAddPaletteIndex(int id) {
+        int paletteIndex = this.paletteLookup[id] - 1;
+        if (paletteIndex < 0) {
+            if (this.paletteSize == 1 << this.bits) {
+                this.resize(this.bits * 2);
+            }
+            paletteIndex = this.paletteSize++;
+            if (paletteIndex == this.palette.length) {
+                this.palette = Arrays.copyOf(this.palette, this.palette.length * 2);
+            }
+            this.palette[paletteIndex] = id;
+            this.paletteLookup[id] = (short) (paletteIndex + 1);
+        }
+        return paletteIndex;
+    }
+
+    private void setPaletteIndex(int index, int paletteIndex) {
+        long[] data = this.data();
+        int bitIndex = index * this.bits;
+        int shift = bitIndex & 63;
+        long mask = (1L << this.bits) - 1L;
+        data[bitIndex >>> 6] = (data[bitIndex >>> 6] & ~(mask << shift)) | ((long) paletteIndex << shift);
+    }
+
+    private int getPaletteIndex(int index) {
+        int bitIndex = index * this.bits;
+        return (int) (this.word(bitIndex >>> 6) >>> (bitIndex & 63)) & ((1 << this.bits) - 1);
+    }
+
+    private void resize(int bits) {
+        long[] oldData = this.bits == 0 ? null : this.data();
+        int oldBits = this.bits;
+
+        this.bits = bits;
+        this.data = new long[VOLUME * bits / 64];
+        if (this.paletteLookup == null) {
+            this.paletteLookup = new short[MAX_ID];
+            this.paletteLookup[this.palette[0]] = 1;
+        }
+        if (oldData == null) return;
+
+        int oldMask = (1 << oldBits) - 1;
+        for (int i = 0; i < VOLUME; ++i) {
+            int bitIndex = i * oldBits;
+            int paletteIndex = (int) (oldData[bitIndex >>> 6] >>> (bitIndex & 63)) & oldMask;
+            if (paletteIndex != 0) {
+                this.setPaletteIndex(i, paletteIndex);
+            }
+        }
+    }
+
+    public void compact() {
+        if (this.bits == 0) return;
+        this.unshare();
+        ++this.version;
+
+        int[] counts = new int[this.paletteSize];
+        for (int i = 0; i < VOLUME; ++i) {
+            counts[this.getPaletteIndex(i)]++;
+        }
+
+        int[] remap = new int[this.paletteSize];
+        int[] palette = new int[this.paletteSize];
+        int size = 0;
+        for (int i = 0; i < this.paletteSize; ++i) {
+            if (counts[i] > 0) {
+                remap[i] = size;
+                palette[size++] = this.palette[i];
+            }
+        }
+
+        if (size == 1) {
+            this.palette = new int[]{palette[0]};
+            this.paletteSize = 1;
+            this.paletteLookup = null;
+            this.bits = 0;
+            this.data = null;
+            this.source = null;
+            return;
+        }
+
+        int bits = 1;
+        while (1 << bits < size) bits *= 2;
+        if (bits == this.bits && size == this.paletteSize) return;
+
+        long[] oldData = this.data();
+        int oldBits = this.bits;
+        int oldMask = (1 << oldBits) - 1;
+
+        this.bits = bits;
+        this.data = new long[VOLUME * bits / 64];
+        for (int i = 0; i < VOLUME; ++i) {
+            int bitIndex = i * oldBits;
+            int paletteIndex = remap[(int) (oldData[bitIndex >>> 6] >>> (bitIndex & 63)) & oldMask];
+            if (paletteIndex != 0) {
+                this.setPaletteIndex(i, paletteIndex);
+            }
+        }
+
+        this.palette = palette;
+        this.paletteSize = size;
+        Arrays.fill(this.paletteLookup, (short) 0);
+        for (int i = 0; i < size; ++i) {
+            this.paletteLookup[palette[i]] = (short) (i + 1);
+        }
+    }
+
+    public void write(DataOutput output) throws IOException {
+        output.writeByte(this.bits);
+        output.writeShort(this.paletteSize);
+        for (int i = 0; i < this.paletteSize; ++i) {
+            output.writeByte(this.palette[i]);
+        }
+
+        if (this.bits != 0) {
+            for (int i = 0; i < VOLUME * this.bits / 64; ++i) {
+                output.writeLong(this.word(i));
+            }
+        }
+    }
+
+    private static void validateHeader(int bits, int paletteSize) throws IOException {
+        if ((bits != 0 && bits != 1 && bits != 2 && bits != 4 && bits != 8) || paletteSize == 0 || paletteSize > 1 << bits) {
+            throw new IOException("Invalid section header: bits=" + bits + ", palette=" + paletteSize);
+        }
+    }
+
+    private void setPalette(int bits, int[] palette) {
+        short[] paletteLookup = null;
+        if (bits != 0) {
+            paletteLookup = new short[MAX_ID];
+            for (int i = 0; i < palette.length; ++i) {
+                paletteLookup[palette[i]] = (short) (i + 1);
+            }
+        }
+
+        this.bits = bits;
+        this.palette = palette;
+        this.paletteSize = palette.length;
+        this.paletteLookup = paletteLookup;
+        this.shared = false;
+        ++this.version;
+    }
+
+    public void read(DataInput input) throws IOException {
+        int bits = input.readUnsignedByte();
+        int paletteSize = input.readUnsignedShort();
+        validateHeader(bits, paletteSize);
+
+        int[] palette = new int[paletteSize];
+        for (int i = 0; i < paletteSize; ++i) {
+            palette[i] = input.readUnsignedByte();
+        }
+
+        long[] data = null;
+        if (bits != 0) {
+            data = new long[VOLUME * bits / 64];
+            for (int i = 0; i < data.length; ++i) {
+                data[i] = input.readLong();
+            }
+        }
+
+        this.setPalette(bits, palette);
+        this.data = data;
+        this.source = null;
+    }
+
+    public void read(ByteBuffer input) throws IOException {
+        int bits = input.get() & 0xFF;
+        int paletteSize = input.getShort() & 0xFFFF;
+        validateHeader(bits, paletteSize);
+
+        int[] palette = new int[paletteSize];
+        for (int i = 0; i < paletteSize; ++i) {
+            palette[i] = input.get() & 0xFF;
+        }
+
+        ByteBuffer source = null;
+        if (bits != 0) {
+            int length = VOLUME * bits / 8;
+            source = input.slice(input.position(), length);
+            input.position(input.position() + length);
+        }
+
+        this.setPalette(bits, palette);
+        this.data = null;
+        this.source = source;
+    }
+}
@@ -0,0 +1,94 @@
+package me.kalmemarq.world;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+public class ColumnStorage implements Closeable {
+    private static final Logger LOGGER = LogManager.getLogger("World");
+    private final Path directory;
+    private final boolean compressed;
+    private final Long2ObjectOpenHashMap<RegionFile> regions = new Long2ObjectOpenHashMap<>();
+
+    public ColumnStorage(Path directory, boolean compressed) {
+        this.directory = directory;
+        this.compressed = compressed;
+    }
+
+    private synchronized RegionFile getRegion(int x, int z, boolean create) throws IOException {
+        int regionX = x >> RegionFile.SHIFT;
+        int regionZ = z >> RegionFile.SHIFT;
+        long key = ChunkPos.asLong(regionX, regionZ);
+        RegionFile region = this.regions.get(key);
+        if (region == null) {
+            Path path = this.directory.resolve("r." + regionX + "." + regionZ + ".dat");
+            if (!create && !Files.exists(path)) return null;
+            Files.createDirectories(this.directory);
+            region = new RegionFile(path);
+            this.regions.put(key, region);
+        }
+        return region;
+    }
+
+    // A column that cannot be decoded is copied to corrupt/ and reported missing, so the terrain generated in its place
+    // never overwrites the only copy. If even that copy fails the region file is unreadable and the error is thrown.
+    public boolean read(ChunkColumn column) throws IOException {
+        RegionFile region = this.getRegion(column.x, column.z, false);
+        if (region == null) return false;
+
+        try {
+            RegionFile.Entry entry = region.read(column.x, column.z);
+            if (entry == null) return false;
+
+            if (entry.compression() == RegionFile.COMPRESSION_NONE) {
+                column.read(entry.data());
+            } else {
+                try (DataInputStream e = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(entry.data().array())))) {
+                    column.read(e);
+                }
+            }
+        } catch (IOException e) {
+            Path path = this.directory.resolve("corrupt").resolve("c." + column.x + "." + column.z + "." + System.currentTimeMillis() + ".dat");
+            Files.createDirectories(path.getParent());
+            Files.write(path, region.readSectors(column.x, column.z));
+            LOGGER.error("Column {}, {} could not be read, moved it to {} and generating it again", column.x, column.z, path, e);
+            return false;
+        }
+
+        return true;
+    }
+
+    public void write(ChunkColumn column) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+        OutputStream stream = this.compressed ? new DeflaterOutputStream(bytes) : bytes;
+        try (DataOutputStream e = new DataOutputStream(stream)) {
+            column.write(e);
+        }
+
+        int compression = this.compressed ? RegionFile.COMPRESSION_DEFLATE : RegionFile.COMPRESSION_NONE;
+        this.getRegion(column.x, column.z, true).write(column.x, column.z, compression, bytes.toByteArray(), bytes.size());
+    }
+
+    @Override
+    public synchronized void close() {
+        for (RegionFile region : this.regions.values()) {
+            try {
+                region.close();
+            } catch (IOException ignored) {
+            }
+        }
+        this.regions.clear();
+    }
+}
@@ -0,0 +1,273 @@
+package me.kalmemarq.world;
+
+import me.kalmemarq.World;
+import me.kalmemarq.block.Block;
+import me.kalmemarq.block.Blocks;
+
+import java.util.Arrays;
+
+// Sky and block light are spread with breadth-first passes over queues of packed positions.
+// Edits and column loads only queue their seeds, propagate() then runs all removals before
+// all additions so that light removed by one edit is refilled from whatever still lights it.
+public class LightEngine {
+    public static final int MAX_LIGHT = 15;
+    private static final int DOWN = 0;
+    private static final int[] OFFSET_X = {0, 0, 0, 0, -1, 1};
+    private static final int[] OFFSET_Y = {-1, 1, 0, 0, 0, 0};
+    private static final int[] OFFSET_Z = {0, 0, -1, 1, 0, 0};
+
+    private final World world;
+    private final Listener listener;
+    private final Queue[] increase = {new Queue(), new Queue()};
+    private final Queue[] decrease = {new Queue(), new Queue()};
+
+    public LightEngine(World world, Listener listener) {
+        this.world = world;
+        this.listener = listener;
+    }
+
+    public static float getBrightness(int level) {
+        return 0.5f + 0.5f * level / MAX_LIGHT;
+    }
+
+    // Queues the light of a freshly loaded column, whose sky light must already be initialized,
+    // and the light exchanged with its loaded neighbours.
+    public void initializeColumn(ChunkColumn column) {
+        int originX = column.x << World.CHUNK_SHIFT;
+        int originZ = column.z << World.CHUNK_SHIFT;
+
+        for (int z = 0; z < ChunkColumn.SIZE; ++z) {
+            for (int x = 0; x < ChunkColumn.SIZE; ++x) {
+                int height = column.getHeight(x, z);
+                int shadedHeight = height;
+                if (x > 0) shadedHeight = Math.max(shadedHeight, column.getHeight(x - 1, z));
+                if (x < ChunkColumn.SIZE - 1) shadedHeight = Math.max(shadedHeight, column.getHeight(x + 1, z));
+                if (z > 0) shadedHeight = Math.max(shadedHeight, column.getHeight(x, z - 1));
+                if (z < ChunkColumn.SIZE - 1) shadedHeight = Math.max(shadedHeight, column.getHeight(x, z + 1));
+                for (int y = height + 1; y <= shadedHeight; ++y) {
+                    this.increase[ChunkColumn.SKY_LIGHT].add(BlockPos.asLong(originX + x, y, originZ + z), MAX_LIGHT);
+                }
+            }
+        }
+
+        for (int i = 0; i < column.getSectionCount(); ++i) {
+            ChunkSection section = column.getSection(i);
+            if (section.count(id -> Blocks.blocks[id].getLightEmission() > 0) == 0) continue;
+            for (int index = 0; index < ChunkSection.VOLUME; ++index) {
+                int emission = Blocks.blocks[section.get(index)].getLightEmission();
+                if (emission > 0) {
+                    int x = index & (ChunkSection.SIZE - 1);
+                    int y = i * ChunkSection.SIZE + (index >> World.CHUNK_SHIFT * 2);
+                    int z = index >> World.CHUNK_SHIFT & (ChunkSection.SIZE - 1);
+                    column.setLight(ChunkColumn.BLOCK_LIGHT, x, y, z, emission);
+                    this.increase[ChunkColumn.BLOCK_LIGHT].add(BlockPos.asLong(originX + x, y, originZ + z), emission);
+                }
+            }
+        }
+
+        for (int i = 0; i < ChunkColumn.SIZE; ++i) {
+            this.queueBorder(originX + i, originZ - 1, originX + i, originZ);
+            this.queueBorder(originX + i, originZ + ChunkColumn.SIZE, originX + i, originZ + ChunkColumn.SIZE - 1);
+            this.queueBorder(originX - 1, originZ + i, originX, originZ + i);
+            this.queueBorder(originX + ChunkColumn.SIZE, originZ + i, originX + ChunkColumn.SIZE - 1, originZ + i);
+        }
+    }
+
+    private void queueBorder(int outsideX, int outsideZ, int insideX, int insideZ) {
+        ChunkColumn outside = this.world.getColumn(outsideX, outsideZ);
+        if (outside == null) return;
+        ChunkColumn inside = this.world.getColumn(insideX, insideZ);
+        for (int channel = 0; channel < 2; ++channel) {
+            for (int y = 0; y < this.world.depth; ++y) {
+                int outsideLevel = outside.getLight(channel, outsideX & (ChunkColumn.SIZE - 1), y, outsideZ & (ChunkColumn.SIZE - 1));
+                if (outsideLevel > 1) this.increase[channel].add(BlockPos.asLong(outsideX, y, outsideZ), outsideLevel);
+                int insideLevel = inside.getLight(channel, insideX & (ChunkColumn.SIZE - 1), y, insideZ & (ChunkColumn.SIZE - 1));
+                if (insideLevel > 1) this.increase[channel].add(BlockPos.asLong(insideX, y, insideZ), insideLevel);
+            }
+        }
+    }
+
+    // Queues the light changes caused by the block now at this position.
+    public void onBlockChanged(int x, int y, int z) {
+        this.onBlocksChanged(x, y, z, 1);
+    }
+
+    // Same as onBlockChanged for a run of changed blocks along x that stays inside one column.
+    // Neighbours inside the run lose their own light as well, so they are not used as seeds.
+    public void onBlocksChanged(int x, int y, int z, int length) {
+        ChunkColumn column = this.world.getColumn(x, z);
+        if (column == null) return;
+        for (int i = 0; i < length; ++i) {
+            this.onBlockChanged(column, x + i, y, z, x, x + length - 1);
+        }
+    }
+
+    private void onBlockChanged(ChunkColumn column, int x, int y, int z, int runStart, int runEnd) {
+        int localX = x & (ChunkColumn.SIZE - 1);
+        int localZ = z & (ChunkColumn.SIZE - 1);
+        Block block = Blocks.blocks[column.get(localX, y, localZ)];
+        long pos = BlockPos.asLong(x, y, z);
+
+        for (int channel = 0; channel < 2; ++channel) {
+            int level = column.getLight(channel, localX, y, localZ);
+            if (level > 0) {
+                this.setLight(column, channel, x, y, z, 0);
+                this.decrease[channel].add(pos, level);
+            }
+
+            int emission = channel == ChunkColumn.BLOCK_LIGHT ? block.getLightEmission() : 0;
+            if (emission > 0) {
+                this.setLight(column, channel, x, y, z, emission);
+                this.increase[channel].add(pos, emission);
+            }
+
+            if (block.isOpaque()) continue;
+
+            if (channel == ChunkColumn.SKY_LIGHT && y == this.world.depth - 1) {
+                this.setLight(column, channel, x, y, z, MAX_LIGHT);
+                this.increase[channel].add(pos, MAX_LIGHT);
+            }
+            for (int direction = 0; direction < 6; ++direction) {
+                int neighbourX = x + OFFSET_X[direction];
+                int neighbourY = y + OFFSET_Y[direction];
+                int neighbourZ = z + OFFSET_Z[direction];
+                if (neighbourY < 0 || neighbourY >= this.world.depth) continue;
+                if (neighbourY == y && neighbourZ == z && neighbourX >= runStart && neighbourX <= runEnd) continue;
+                ChunkColumn neighbour = this.world.getColumn(neighbourX, neighbourZ);
+                if (neighbour == null) continue;
+                int neighbourLevel = neighbour.getLight(channel, neighbourX & (ChunkColumn.SIZE - 1), neighbourY, neighbourZ & (ChunkColumn.SIZE - 1));
+                if (neighbourLevel > 1) {
+                    this.increase[channel].add(BlockPos.asLong(neighbourX, neighbourY, neighbourZ), neighbourLevel);
+                }
+            }
+        }
+    }
+
+    public void propagate() {
+        for (int channel = 0; channel < 2; ++channel) {
+            this.propagateDecrease(channel);
+            this.propagateIncrease(channel);
+        }
+    }
+
+    private void propagateDecrease(int channel) {
+        Queue queue = this.decrease[channel];
+        while (!queue.isEmpty()) {
+            long pos = queue.peekPos();
+            int level = queue.pollLevel();
+            int x = BlockPos.getX(pos);
+            int y = BlockPos.getY(pos);
+            int z = BlockPos.getZ(pos);
+
+            for (int direction = 0; direction < 6; ++direction) {
+                int neighbourX = x + OFFSET_X[direction];
+                int neighbourY = y + OFFSET_Y[direction];
+                int neighbourZ = z + OFFSET_Z[direction];
+                if (neighbourY < 0 || neighbourY >= this.world.depth) continue;
+                ChunkColumn neighbour = this.world.getColumn(neighbourX, neighbourZ);
+                if (neighbour == null) continue;
+                int localX = neighbourX & (ChunkColumn.SIZE - 1);
+                int localZ = neighbourZ & (ChunkColumn.SIZE - 1);
+                int neighbourLevel = neighbour.getLight(channel, localX, neighbourY, localZ);
+                if (neighbourLevel == 0) continue;
+
+                long neighbourPos = BlockPos.asLong(neighbourX, neighbourY, neighbourZ);
+                boolean skyColumn = channel == ChunkColumn.SKY_LIGHT && direction == DOWN && level == MAX_LIGHT;
+                if (neighbourLevel < level || skyColumn) {
+                    this.setLight(neighbour, channel, neighbourX, neighbourY, neighbourZ, 0);
+                    queue.add(neighbourPos, neighbourLevel);
+                    int emission = channel == ChunkColumn.BLOCK_LIGHT ? Blocks.blocks[neighbour.get(localX, neighbourY, localZ)].getLightEmission() : 0;
+                    if (emission > 0) {
+                        this.setLight(neighbour, channel, neighbourX, neighbourY, neighbourZ, emission);
+                        this.increase[channel].add(neighbourPos, emission);
+                    }
+                } else {
+                    this.increase[channel].add(neighbourPos, neighbourLevel);
+                }
+            }
+        }
+        queue.clear();
+    }
+
+    private void propagateIncrease(int channel) {
+        Queue queue = this.increase[channel];
+        while (!queue.isEmpty()) {
+            long pos = queue.peekPos();
+            int level = queue.pollLevel();
+            int x = BlockPos.getX(pos);
+            int y = BlockPos.getY(pos);
+            int z = BlockPos.getZ(pos);
+            ChunkColumn column = this.world.getColumn(x, z);
+            if (column == null || column.getLight(channel, x & (ChunkColumn.SIZE - 1), y, z & (ChunkColumn.SIZE - 1)) != level) continue;
+
+            for (int direction = 0; direction < 6; ++direction) {
+                int neighbourX = x + OFFSET_X[direction];
+                int neighbourY = y + OFFSET_Y[direction];
+                int neighbourZ = z + OFFSET_Z[direction];
+                if (neighbourY < 0 || neighbourY >= this.world.depth) continue;
+                ChunkColumn neighbour = this.world.getColumn(neighbourX, neighbourZ);
+                if (neighbour == null) continue;
+                int localX = neighbourX & (ChunkColumn.SIZE - 1);
+                int localZ = neighbourZ & (ChunkColumn.SIZE - 1);
+                if (Blocks.blocks[neighbour.get(localX, neighbourY, localZ)].isOpaque()) continue;
+
+                int neighbourLevel = channel == ChunkColumn.SKY_LIGHT && direction == DOWN && level == MAX_LIGHT ? MAX_LIGHT : level - 1;
+                if (neighbour.getLight(channel, localX, neighbourY, localZ) < neighbourLevel) {
+                    this.setLight(neighbour, channel, neighbourX, neighbourY, neighbourZ, neighbourLevel);
+                    if (neighbourLevel > 1) queue.add(BlockPos.asLong(neighbourX, neighbourY, neighbourZ), neighbourLevel);
+                }
+            }
+        }
+        queue.clear();
+    }
+
+    private void setLight(ChunkColumn column, int channel, int x, int y, int z, int level) {
+        column.setLight(channel, x & (ChunkColumn.SIZE - 1), y, z & (ChunkColumn.SIZE - 1), level);
+        this.listener.onLightChanged(x, y, z);
+    }
+
+    @FunctionalInterface
+    public interface Listener {
+        void onLightChanged(int x, int y, int z);
+    }
+
+    private static class Queue {
+        private long[] positions = new long[256];
+        private byte[] levels = new byte[256];
+        private int head;
+        private int tail;
+
+        void add(long pos, int level) {
+            if (this.tail == this.positions.length) {
+                int size = this.tail - this.head;
+                if (size > this.positions.length / 2) {
+                    this.positions = Arrays.copyOf(this.positions, this.positions.length * 2);
+                    this.levels = Arrays.copyOf(this.levels, this.levels.length * 2);
+                }
+                System.arraycopy(this.positions, this.head, this.positions, 0, size);
+                System.arraycopy(this.levels, this.head, this.levels, 0, size);
+                this.head = 0;
+                this.tail = size;
+            }
+            this.positions[this.tail] = pos;
+            this.levels[this.tail++] = (byte) level;
+        }
+
+        boolean isEmpty() {
+            return this.head == this.tail;
+        }
+
+        long peekPos() {
+            return this.positions[this.head];
+        }
+
+        int pollLevel() {
+            return this.levels[this.head++];
+        }
+
+        void clear() {
+            this.head = 0;
+            this.tail = 0;
+        }
+    }
+}
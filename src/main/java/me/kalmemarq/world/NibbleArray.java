@@ -0,0 +1,53 @@
+package me.kalmemarq.world;
+
+import java.util.Arrays;
+
+public class NibbleArray {
+    private byte[] data;
+    private int value;
+    private boolean shared;
+    private int version;
+
+    public NibbleArray(int value) {
+        this.value = value;
+    }
+
+    public NibbleArray snapshot() {
+        NibbleArray copy = new NibbleArray(this.value);
+        copy.data = this.data;
+        copy.version = this.version;
+        copy.shared = true;
+        this.shared = true;
+        return copy;
+    }
+
+    public int getVersion() {
+        return this.version;
+    }
+
+    public int get(int index) {
+        if (this.data == null) return this.value;
+        return this.data[index >> 1] >> ((index & 1) << 2) & 15;
+    }
+
+    public void set(int index, int value) {
+        if (this.get(index) == value) return;
+        if (this.data == null) {
+            this.data = new byte[ChunkSection.VOLUME / 2];
+            Arrays.fill(this.data, (byte) (this.value * 0x11));
+        } else if (this.shared) {
+            this.data = this.data.clone();
+        }
+        this.shared = false;
+        ++this.version;
+        int shift = (index & 1) << 2;
+        this.data[index >> 1] = (byte) (this.data[index >> 1] & ~(15 << shift) | value << shift);
+    }
+
+    public void fill(int value) {
+        this.data = null;
+        this.value = value;
+        this.shared = false;
+        ++this.version;
+    }
+}
@@ -0,0 +1,87 @@
+package me.kalmemarq.world;
+
+import me.kalmemarq.World;
+
+import java.util.Arrays;
+
+// Reads the section views last published by the world, so it may be used off the world thread.
+public class PublishedBlockView implements BlockView {
+    private final World world;
+    private SectionView lastView;
+    private int lastX;
+    private int lastY;
+    private int lastZ;
+
+    public PublishedBlockView(World world) {
+        this.world = world;
+    }
+
+    private SectionView getView(int x, int y, int z) {
+        int chunkX = x >> World.CHUNK_SHIFT;
+        int chunkY = y >> World.CHUNK_SHIFT;
+        int chunkZ = z >> World.CHUNK_SHIFT;
+        if (this.lastView == null || chunkX != this.lastX || chunkY != this.lastY || chunkZ != this.lastZ) {
+            SectionView view = this.world.getSectionView(chunkX, chunkY, chunkZ);
+            if (view == null) return null;
+            this.lastView = view;
+            this.lastX = chunkX;
+            this.lastY = chunkY;
+            this.lastZ = chunkZ;
+        }
+        return this.lastView;
+    }
+
+    @Override
+    public int getBlockId(int x, int y, int z) {
+        SectionView view = this.getView(x, y, z);
+        if (view == null) return 0;
+        return view.getBlockId(x & (World.CHUNK_SIZE - 1), y & (World.CHUNK_SIZE - 1), z & (World.CHUNK_SIZE - 1));
+    }
+
+    @Override
+    public void getBlockIds(int x, int y, int z, int sizeX, int sizeY, int sizeZ, int[] out) {
+        int i = 0;
+        for (int blockY = y; blockY < y + sizeY; ++blockY) {
+            for (int blockZ = z; blockZ < z + sizeZ; ++blockZ, i += sizeX) {
+                for (int blockX = x; blockX < x + sizeX; ) {
+                    int span = Math.min(x + sizeX, (blockX | (World.CHUNK_SIZE - 1)) + 1) - blockX;
+                    int offset = i + blockX - x;
+                    SectionView view = this.getView(blockX, blockY, blockZ);
+                    if (view == null) {
+                        Arrays.fill(out, offset, offset + span, 0);
+                    } else {
+                        view.blocks().getRow(blockX & (World.CHUNK_SIZE - 1), blockY & (World.CHUNK_SIZE - 1), blockZ & (World.CHUNK_SIZE - 1), span, out, offset);
+                    }
+                    blockX += span;
+                }
+            }
+        }
+    }
+
+    @Override
+    public float getBrigthness(int x, int y, int z) {
+        SectionView view = this.getView(x, y, z);
+        if (view == null) return LightEngine.getBrightness(LightEngine.MAX_LIGHT);
+        return LightEngine.getBrightness(view.getLight(x & (World.CHUNK_SIZE - 1), y & (World.CHUNK_SIZE - 1), z & (World.CHUNK_SIZE - 1)));
+    }
+
+    @Override
+    public void getBrigthness(int x, int y, int z, int sizeX, int sizeY, int sizeZ, float[] out) {
+        int i = 0;
+        for (int blockY = y; blockY < y + sizeY; ++blockY) {
+            for (int blockZ = z; blockZ < z + sizeZ; ++blockZ, i += sizeX) {
+                for (int blockX = x; blockX < x + sizeX; ) {
+                    int span = Math.min(x + sizeX, (blockX | (World.CHUNK_SIZE - 1)) + 1) - blockX;
+                    int offset = i + blockX - x;
+                    SectionView view = this.getView(blockX, blockY, blockZ);
+                    if (view == null) {
+                        Arrays.fill(out, offset, offset + span, LightEngine.getBrightness(LightEngine.MAX_LIGHT));
+                    } else {
+                        view.getBrightnessRow(blockX & (World.CHUNK_SIZE - 1), blockY & (World.CHUNK_SIZE - 1), blockZ & (World.CHUNK_SIZE - 1), span, out, offset);
+                    }
+                    blockX += span;
+                }
+            }
+        }
+    }
+}
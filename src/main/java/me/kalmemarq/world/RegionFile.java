@@ -0,0 +1,154 @@
+package me.kalmemarq.world;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+public class RegionFile implements Closeable {
+    public static final int SIZE = 32;
+    public static final int SHIFT = 5;
+    public static final int COMPRESSION_DEFLATE = 1;
+    public static final int COMPRESSION_NONE = 2;
+    private static final int SECTOR_SIZE = 4096;
+    private static final int HEADER_SECTORS = 1;
+    private static final int MAX_SECTOR_COUNT = 255;
+
+    private final FileChannel channel;
+    private final int[] offsets = new int[SIZE * SIZE];
+    private final BitSet usedSectors = new BitSet();
+    private final BitSet mappedSectors = new BitSet();
+
+    public RegionFile(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.usedSectors.set(0, HEADER_SECTORS);
+
+        ByteBuffer header = ByteBuffer.allocate(this.offsets.length * 4);
+        if (this.channel.size() < header.capacity()) {
+            this.writeFully(header, 0);
+            return;
+        }
+
+        this.readFully(header, 0);
+        header.flip();
+        long fileSectors = (this.channel.size() + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        for (int i = 0; i < this.offsets.length; ++i) {
+            int offset = header.getInt();
+            int sector = offset >>> 8;
+            int count = offset & 0xFF;
+            if (offset != 0 && sector >= HEADER_SECTORS && sector + count <= fileSectors) {
+                this.offsets[i] = offset;
+                this.usedSectors.set(sector, sector + count);
+            }
+        }
+    }
+
+    private static int index(int x, int z) {
+        return (x & (SIZE - 1)) + (z & (SIZE - 1)) * SIZE;
+    }
+
+    public synchronized Entry read(int x, int z) throws IOException {
+        int offset = this.offsets[index(x, z)];
+        if (offset == 0) return null;
+
+        int sector = offset >>> 8;
+        int count = offset & 0xFF;
+        long position = (long) sector * SECTOR_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(5);
+        this.readFully(header, position);
+        int length = header.getInt(0);
+        int compression = header.get(4);
+        if (length <= 0 || length + 5 > count * SECTOR_SIZE) {
+            throw new IOException("Corrupt region entry " + x + "," + z);
+        }
+
+        ByteBuffer data;
+        if (compression == COMPRESSION_NONE) {
+            data = this.channel.map(FileChannel.MapMode.READ_ONLY, position + 5, length);
+            this.mappedSectors.set(sector, sector + count);
+        } else {
+            data = ByteBuffer.allocate(length);
+            this.readFully(data, position + 5);
+            data.flip();
+        }
+        return new Entry(compression, data);
+    }
+
+    // The sectors of an entry as they are on disk, for keeping a copy of one that could not be read.
+    public synchronized byte[] readSectors(int x, int z) throws IOException {
+        int offset = this.offsets[index(x, z)];
+        long position = (long) (offset >>> 8) * SECTOR_SIZE;
+        ByteBuffer data = ByteBuffer.allocate((int) Math.max(0, Math.min((offset & 0xFF) * SECTOR_SIZE, this.channel.size() - position)));
+        this.readFully(data, position);
+        return data.array();
+    }
+
+    public synchronized void write(int x, int z, int compression, byte[] data, int length) throws IOException {
+        int index = index(x, z);
+        int offset = this.offsets[index];
+        int oldSector = offset >>> 8;
+        int oldCount = offset & 0xFF;
+        int count = (length + 5 + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        if (count > MAX_SECTOR_COUNT) {
+            throw new IOException("Column " + x + "," + z + " is too large (" + length + " bytes)");
+        }
+
+        // The new copy always goes to free sectors and is synced before the header points at it,
+        // so a crash mid-write leaves the old copy intact.
+        int sector = this.findFreeSectors(count);
+        this.usedSectors.set(sector, sector + count);
+
+        ByteBuffer buffer = ByteBuffer.allocate(5 + length);
+        buffer.putInt(length).put((byte) compression).put(data, 0, length).flip();
+        this.writeFully(buffer, (long) sector * SECTOR_SIZE);
+        this.channel.force(false);
+
+        this.offsets[index] = sector << 8 | count;
+        ByteBuffer entry = ByteBuffer.allocate(4).putInt(0, this.offsets[index]);
+        this.writeFully(entry, (long) index * 4);
+        this.channel.force(false);
+
+        // Sectors that were handed out as mappings may still back live sections,
+        // so they are never reused while this file stays open.
+        if (offset != 0) {
+            int mappedSector = this.mappedSectors.nextSetBit(oldSector);
+            if (mappedSector == -1 || mappedSector >= oldSector + oldCount) {
+                this.usedSectors.clear(oldSector, oldSector + oldCount);
+            }
+        }
+    }
+
+    private int findFreeSectors(int count) {
+        int start = this.usedSectors.nextClearBit(HEADER_SECTORS);
+        while (true) {
+            int end = this.usedSectors.nextSetBit(start);
+            if (end == -1 || end - start >= count) return start;
+            start = this.usedSectors.nextClearBit(end);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of region file");
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.channel.close();
+    }
+
+    public record Entry(int compression, ByteBuffer data) {
+    }
+}
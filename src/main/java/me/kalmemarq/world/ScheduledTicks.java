@@ -0,0 +1,65 @@
+package me.kalmemarq.world;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.function.LongConsumer;
+
+public class ScheduledTicks {
+    private static final Comparator<Entry> ORDER = Comparator.comparingInt(Entry::time).thenComparingLong(Entry::pos);
+
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>(ORDER);
+    private final LongOpenHashSet scheduled = new LongOpenHashSet();
+
+    public boolean schedule(long pos, int time) {
+        if (!this.scheduled.add(pos)) return false;
+        this.queue.add(new Entry(time, pos));
+        return true;
+    }
+
+    // Runs at most budget ticks that are due at the given time, the rest stays queued for later.
+    public int run(int time, int budget, LongConsumer action) {
+        int processed = 0;
+        while (processed < budget) {
+            Entry entry = this.queue.peek();
+            if (entry == null || entry.time > time) break;
+            this.queue.poll();
+            this.scheduled.remove(entry.pos);
+            action.accept(entry.pos);
+            ++processed;
+        }
+        return processed;
+    }
+
+    public ScheduledTicks copy() {
+        ScheduledTicks copy = new ScheduledTicks();
+        copy.queue.addAll(this.queue);
+        copy.scheduled.addAll(this.scheduled);
+        return copy;
+    }
+
+    public void write(DataOutput output) throws IOException {
+        output.writeInt(this.queue.size());
+        for (Entry entry : this.queue) {
+            output.writeInt(entry.time);
+            output.writeLong(entry.pos);
+        }
+    }
+
+    public void read(DataInput input) throws IOException {
+        this.queue.clear();
+        this.scheduled.clear();
+        int count = input.readInt();
+        for (int i = 0; i < count; ++i) {
+            int time = input.readInt();
+            this.schedule(input.readLong(), time);
+        }
+    }
+
+    private record Entry(int time, long pos) {
+    }
+}
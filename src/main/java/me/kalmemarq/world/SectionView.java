@@ -0,0 +1,25 @@
+package me.kalmemarq.world;
+
+// An immutable copy-on-write snapshot of a section and its light, safe to read from any thread.
+public record SectionView(ChunkSection blocks, NibbleArray skyLight, NibbleArray blockLight) {
+    public int getBlockId(int x, int y, int z) {
+        return this.blocks.get(x, y, z);
+    }
+
+    public int getLight(int x, int y, int z) {
+        int index = ChunkSection.index(x, y, z);
+        return Math.max(this.skyLight.get(index), this.blockLight.get(index));
+    }
+
+    // Writes the brightness of length blocks going along x from (x, y, z), the run must stay inside the section.
+    public void getBrightnessRow(int x, int y, int z, int length, float[] out, int offset) {
+        int index = ChunkSection.index(x, y, z);
+        for (int i = 0; i < length; ++i) {
+            out[offset + i] = LightEngine.getBrightness(Math.max(this.skyLight.get(index + i), this.blockLight.get(index + i)));
+        }
+    }
+
+    boolean isCurrent(ChunkSection blocks, NibbleArray skyLight, NibbleArray blockLight) {
+        return this.blocks.getVersion() == blocks.getVersion() && this.skyLight.getVersion() == skyLight.getVersion() && this.blockLight.getVersion() == blockLight.getVersion();
+    }
+}
@@ -0,0 +1,113 @@
+package me.kalmemarq.world;
+
+import me.kalmemarq.block.Blocks;
+import me.kalmemarq.util.PerlinNoiseFilter;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class WorldGenerator {
+    private static final int TILE_SIZE = 256;
+    private static final int TILE_SHIFT = 8;
+    private static final int BLEND_SIZE = 32;
+    private static final int MAX_CACHED_TILES = 64;
+
+    private final long seed;
+    private final int depth;
+    private final PerlinNoiseFilter filter = new PerlinNoiseFilter();
+    private final Map<Long, CompletableFuture<int[][]>> tiles = new ConcurrentHashMap<>();
+
+    public WorldGenerator(long seed, int depth) {
+        this.seed = seed;
+        this.depth = depth;
+    }
+
+    private int[][] getTile(int tileX, int tileZ) {
+        long key = ChunkPos.asLong(tileX, tileZ);
+        CompletableFuture<int[][]> tile = this.tiles.get(key);
+        if (tile == null) {
+            if (this.tiles.size() >= MAX_CACHED_TILES) {
+                this.tiles.clear();
+            }
+            tile = this.tiles.computeIfAbsent(key, this::createTile);
+        }
+        return tile.join();
+    }
+
+    private CompletableFuture<int[][]> createTile(long key) {
+        CompletableFuture<int[]> heightmap1 = this.readNoise(key, 0, 0);
+        CompletableFuture<int[]> heightmap2 = this.readNoise(key, 1, 0);
+        CompletableFuture<int[]> controlFilter = this.readNoise(key, 2, 1);
+        CompletableFuture<int[]> rockMap = this.readNoise(key, 3, 1);
+        return CompletableFuture.allOf(heightmap1, heightmap2, controlFilter, rockMap)
+            .thenApply(ignored -> new int[][]{heightmap1.join(), heightmap2.join(), controlFilter.join(), rockMap.join()});
+    }
+
+    private CompletableFuture<int[]> readNoise(long key, int map, int levels) {
+        long seed = (this.seed ^ key * 0x9E3779B97F4A7C15L) + map * 0xBF58476D1CE4E5B9L;
+        return CompletableFuture.supplyAsync(() -> this.filter.read(seed, TILE_SIZE, TILE_SIZE, levels));
+    }
+
+    // Every tile wraps around onto itself, so the previous tile sampled at the same local
+    // position continues seamlessly across the border; blend into it over BLEND_SIZE blocks.
+    private static int sample(int[][][] tiles, int map, int x, int z) {
+        int i = x + z * TILE_SIZE;
+        float wx = Math.min(x, BLEND_SIZE) / (float) BLEND_SIZE;
+        float wz = Math.min(z, BLEND_SIZE) / (float) BLEND_SIZE;
+        float value = tiles[0][map][i] * wx * wz;
+        value += tiles[1][map][i] * (1f - wx) * wz;
+        value += tiles[2][map][i] * wx * (1f - wz);
+        value += tiles[3][map][i] * (1f - wx) * (1f - wz);
+        return Math.round(value);
+    }
+
+    public void generate(ChunkColumn column) {
+        int tileX = (column.x * ChunkColumn.SIZE) >> TILE_SHIFT;
+        int tileZ = (column.z * ChunkColumn.SIZE) >> TILE_SHIFT;
+        int[][][] tiles = {
+            this.getTile(tileX, tileZ),
+            this.getTile(tileX - 1, tileZ),
+            this.getTile(tileX, tileZ - 1),
+            this.getTile(tileX - 1, tileZ - 1)
+        };
+
+        int offsetX = (column.x * ChunkColumn.SIZE) & (TILE_SIZE - 1);
+        int offsetZ = (column.z * ChunkColumn.SIZE) & (TILE_SIZE - 1);
+
+        for (int z = 0; z < ChunkColumn.SIZE; ++z) {
+            for (int x = 0; x < ChunkColumn.SIZE; ++x) {
+                int dh1 = sample(tiles, 0, offsetX + x, offsetZ + z);
+                int dh2 = sample(tiles, 1, offsetX + x, offsetZ + z);
+                int cfh = sample(tiles, 2, offsetX + x, offsetZ + z);
+                if (cfh < 128) {
+                    dh2 = dh1;
+                }
+
+                int dh = Math.max(dh2, dh1);
+
+                dh = dh / 8 + this.depth / 3;
+                int rh = sample(tiles, 3, offsetX + x, offsetZ + z) / 8 + this.depth / 3;
+                if (rh > dh - 2) {
+                    rh = dh - 2;
+                }
+
+                for (int y = 0; y < this.depth; ++y) {
+                    int id = 0;
+
+                    if (y == dh) {
+                        id = Blocks.GRASS.numericId;
+                    } else if (y < dh) {
+                        id = Blocks.DIRT.numericId;
+                    }
+
+                    if (y <= rh) {
+                        id = Blocks.STONE.numericId;
+                    }
+
+                    column.set(x, y, z, id);
+                }
+            }
+        }
+    }
+}
@@ -12,6 +12,7 @@ uniform vec4 uFogColor;
 uniform sampler2D uSampler0;
 
 in vec2 vUV;
+flat in vec2 vTile;
 in vec4 vColor;
 #ifdef FOG
 in float vVertexDistance;
@@ -19,7 +20,7 @@ in float vVertexDistance;
 out vec4 outColor;
 
 void main() {
-    vec4 color = uColor * vColor * texture(uSampler0, vUV);
+    vec4 color = uColor * vColor * texture(uSampler0, (vTile + fract(vUV)) / 16.0);
 #ifdef FOG
     color = fogExp(color, vVertexDistance, uFogDensity, uFogColor);
 #endif
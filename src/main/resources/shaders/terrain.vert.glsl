@@ -4,22 +4,23 @@ uniform mat4 uProjection;
 uniform mat4 uModelView;
 uniform vec3 uMeshOffset;
 
-layout(location = 0) in vec3 aPosition;
-layout(location = 1) in vec2 aUV;
-layout(location = 2) in vec4 aColor;
+layout(location = 0) in vec4 aPosition;
+layout(location = 1) in vec4 aUV;
 
 out vec2 vUV;
+flat out vec2 vTile;
 out vec4 vColor;
 #ifdef FOG
 out float vVertexDistance;
 #endif
 
 void main() {
-    vec4 pos = uModelView * vec4(aPosition + uMeshOffset, 1.0);
+    vec4 pos = uModelView * vec4(aPosition.xyz + uMeshOffset, 1.0);
     gl_Position = uProjection * pos;
 #ifdef FOG
     vVertexDistance = length(pos.xyz);
 #endif
-    vUV = aUV;
-    vColor = aColor;
+    vTile = vec2(mod(aUV.x, 16.0), floor(aUV.x / 16.0));
+    vUV = aUV.yz;
+    vColor = vec4(vec3(aPosition.w / 255.0), 1.0);
 }
\ No newline at end of file